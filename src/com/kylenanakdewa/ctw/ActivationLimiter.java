@@ -0,0 +1,91 @@
+package com.kylenanakdewa.ctw;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Per-player token bucket limiter for Warpstone activations.
+ * <p>
+ * Each player's bucket is a single theoretical arrival time, updated with compare-and-set,
+ * so no locks are taken. A player may activate up to <code>burst</code> times at once,
+ * then at most <code>rate</code> times per second after that.
+ * @author Kyle Nanakdewa
+ */
+final class ActivationLimiter {
+
+	/** The time between tokens, in nanoseconds. Zero if the limiter is disabled. */
+	private final long interval;
+	/** How far ahead of now a player's arrival time may run, in nanoseconds. */
+	private final long tolerance;
+
+	/** The theoretical arrival time of each player's next activation. */
+	private final Map<UUID,AtomicLong> buckets = new ConcurrentHashMap<UUID,AtomicLong>();
+	/** The number of activations dropped. */
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Creates a limiter.
+	 * @param rate the activations allowed per second, or 0 to disable limiting
+	 * @param burst the activations allowed at once
+	 */
+	ActivationLimiter(double rate, int burst){
+		interval = rate>0 ? (long)(1_000_000_000L/rate) : 0;
+		tolerance = interval*(Math.max(burst, 1)-1);
+	}
+
+	/**
+	 * Takes a token for an activation.
+	 * @param player the player activating a Warpstone
+	 * @return true if the activation should be handled, false if it should be dropped
+	 */
+	boolean tryAcquire(Player player){
+		if(interval==0) return true;
+
+		long now = System.nanoTime();
+		AtomicLong bucket = buckets.get(player.getUniqueId());
+		if(bucket==null){
+			bucket = new AtomicLong(now);
+			AtomicLong existing = buckets.putIfAbsent(player.getUniqueId(), bucket);
+			if(existing!=null) bucket = existing;
+		}
+
+		while(true){
+			long arrival = bucket.get();
+			long next = Math.max(arrival, now);
+			if(next-now > tolerance){
+				dropped.increment();
+				return false;
+			}
+			if(bucket.compareAndSet(arrival, next+interval)) return true;
+		}
+	}
+
+	/**
+	 * Removes a player's bucket, when they leave the server.
+	 * @param player the player to forget
+	 */
+	void forget(Player player){
+		buckets.remove(player.getUniqueId());
+	}
+
+	/**
+	 * Gets the number of activations dropped since the plugin was enabled.
+	 * @return the number of dropped activations
+	 */
+	long getDroppedCount(){
+		return dropped.sum();
+	}
+
+	/**
+	 * Whether this limiter is limiting activations.
+	 * @return true if a rate is set
+	 */
+	boolean isEnabled(){
+		return interval!=0;
+	}
+}
@@ -0,0 +1,397 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.kylenanakdewa.core.common.prompts.Prompt;
+import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.warpstones.Warpstone;
+import com.kylenanakdewa.warpstones.WarpstonesPlugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+/**
+ * A CTW arena.
+ * <p>
+ * Each arena runs its own game on its own world, with its own settings, Warpstones,
+ * Guardian Trees, capture journal and checkpoint.
+ * The main arena uses the settings at the top of config.yml. Other arenas are set up
+ * in the arenas section, and use the main arena's settings for anything they don't set,
+ * except for the world, spawn Warpstone and trees file, which belong to each arena.
+ * <p>
+ * An arena whose world isn't loaded when the plugin starts is inactive: it has no Warpstones
+ * and no players, and stays dormant until the next restart.
+ * @author Kyle Nanakdewa
+ */
+public final class Arena {
+
+	/** The name of the main arena. */
+	static final String MAIN = "main";
+
+	/** The name of this arena. */
+	private final String name;
+	/** The settings for this arena. */
+	private final ConfigurationSection settings;
+	/** The settings to use when this arena doesn't set them. */
+	private final ConfigurationSection defaults;
+	/** The name of this arena's world, or null if it runs on all worlds not used by another arena. */
+	private final String worldName;
+
+	/** The WarpstoneCaptureData for this arena. */
+	private final Map<Warpstone,WarpstoneCaptureData> warpstoneData = new HashMap<Warpstone,WarpstoneCaptureData>();
+	/** The last Warpstone each Realm capped. */
+	private final Map<Realm,Warpstone> lastRealmCapped = new HashMap<Realm,Warpstone>();
+
+	/** The Guardian Trees in this arena, or null if Guardian Trees are disabled. */
+	private Set<GuardianTree> trees;
+	/** The queue for granting Guardian Tree powers, or null if Guardian Trees are disabled. */
+	private TreePowerQueue treePowers;
+	/** The task ID for granting Guardian Tree powers, or -1 if it is not running. */
+	private int treeTaskID = -1;
+
+	/** Whether this arena has no players, and its repeating tasks are suspended. */
+	private volatile boolean dormant;
+	/** Whether this arena is running. False if its world wasn't loaded when the arena was enabled. */
+	private boolean active = true;
+
+	/** The CTW plugin. */
+	private CTWPlugin plugin;
+	/** The journal of capture events. */
+	private CaptureJournal captureJournal;
+	/** The checkpoint of captures in progress. Null if checkpointing is disabled. */
+	private CaptureCheckpoint captureCheckpoint;
+	/** The territory held by each realm. */
+	private TerritoryScoreboard territory;
+
+
+	/**
+	 * Creates an arena.
+	 * @param name the name of the arena
+	 * @param settings the settings for the arena
+	 * @param defaults the settings to use when the arena doesn't set them
+	 */
+	Arena(String name, ConfigurationSection settings, ConfigurationSection defaults){
+		this.name = name;
+		this.settings = settings;
+		this.defaults = defaults;
+		String world = settings.getString("world");
+		worldName = world==null || world.isEmpty() ? null : world;
+	}
+
+	/**
+	 * Starts this arena's game: opens the journal, loads Guardian Trees, and resumes captures.
+	 * @param plugin the CTW plugin
+	 */
+	void enable(CTWPlugin plugin){
+		this.plugin = plugin;
+		File folder = isMain() ? plugin.getDataFolder() : new File(plugin.getDataFolder(), "arenas"+File.separator+name);
+		territory = new TerritoryScoreboard(this, new File(folder, "territory.yml"));
+		captureJournal = new CaptureJournal(new File(folder, "journal"));
+
+		// Without its world, this arena would have no Warpstones, so don't run it at all
+		if(worldName!=null && getWorld()==null){
+			active = false;
+			dormant = true;
+			plugin.getLogger().warning("World "+worldName+" for arena "+name+" is not loaded, the arena will be inactive until the server restarts");
+			return;
+		}
+
+		if(getSettings("capture-journal").getBoolean("capture-journal", true)){
+			try {
+				captureJournal.open();
+			} catch(IOException e){
+				plugin.getLogger().warning("Failed to open capture journal for arena "+name+", capture history will not be recorded: "+e.getMessage());
+			}
+		}
+
+		if(getSettings("enable-guardian-trees").getBoolean("enable-guardian-trees")){
+			// Each arena has its own trees, they are never inherited from the main arena
+			String treesFile = settings.getString("trees-file", isMain() ? "trees.yml" : "trees-"+name+".yml");
+			trees = GuardianTree.loadTrees(this, plugin, treesFile);
+			treePowers = new TreePowerQueue(this, getSettings("tree-power-budget").getInt("tree-power-budget", 20));
+		}
+
+		// Count each realm's territory once, it's kept up to date from then on
+		for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
+			if(warpstone.getLocation()!=null && contains(warpstone.getLocation().getWorld())) getWarpstoneCaptureData(warpstone);
+		}
+		territory.count(warpstoneData.values(), getTrees(), getSettings("territory-scoreboard").getBoolean("territory-scoreboard", true));
+
+		// Hold times are saved with checkpoints, or every 10 seconds if checkpoints are disabled
+		int checkpointInterval = getSettings("capture-checkpoint-interval").getInt("capture-checkpoint-interval", 10);
+		territory.start(plugin, (checkpointInterval>0 ? checkpointInterval : 10)*20);
+
+		// Resume captures from before the restart, and keep checkpointing them
+		if(checkpointInterval>0){
+			captureCheckpoint = new CaptureCheckpoint(new File(folder, "captures.dat"), this);
+			int restored = captureCheckpoint.restore(getSettings("capture-reconnect-grace").getInt("capture-reconnect-grace", 120)*20);
+			if(restored>0) plugin.getLogger().info("Resumed "+restored+" captures in progress in arena "+name);
+			captureCheckpoint.start(plugin, checkpointInterval*20);
+		}
+
+		// Start dormant if nobody is here yet
+		dormant = !hasPlayers();
+		if(!dormant) startTasks();
+	}
+
+	/**
+	 * Saves this arena's state when the plugin is disabled.
+	 */
+	void disable(){
+		if(captureCheckpoint!=null) captureCheckpoint.saveNow();
+		territory.hideAll();
+		territory.save();
+		if(captureJournal!=null) captureJournal.close();
+	}
+
+	/**
+	 * Gets the section that holds a setting: this arena's settings if it sets it, otherwise the defaults.
+	 */
+	private ConfigurationSection getSettings(String path){
+		return settings.contains(path) ? settings : defaults;
+	}
+
+
+	/**
+	 * Gets the name of this arena.
+	 * @return the arena name
+	 */
+	public String getName(){
+		return name;
+	}
+	/**
+	 * Whether this is the main arena, set up at the top of config.yml.
+	 * @return true if this is the main arena
+	 */
+	public boolean isMain(){
+		return name.equals(MAIN);
+	}
+
+	/**
+	 * Gets the name of the World this arena runs on.
+	 * @return the world name, or null if this arena runs on all worlds not used by another arena
+	 */
+	String getWorldName(){
+		return worldName;
+	}
+	/**
+	 * Gets the World this arena runs on.
+	 * @return the world for this arena, or null if it runs on all worlds not used by another arena, or its world isn't loaded
+	 */
+	public World getWorld(){
+		return worldName==null ? null : Bukkit.getWorld(worldName);
+	}
+	/**
+	 * Checks whether a World is part of this arena.
+	 * Unlike comparing with {@link #getWorld()}, this is correct for arenas that run on all other worlds, and inactive arenas.
+	 * @param world the world to check
+	 * @return true if CTW runs this arena on the world
+	 */
+	public boolean contains(World world){
+		return world!=null && CTWPlugin.getArena(world)==this;
+	}
+	/**
+	 * Whether this arena is running. An arena is inactive if its world wasn't loaded when the plugin started.
+	 * @return true if this arena is active
+	 */
+	public boolean isActive(){
+		return active;
+	}
+	/**
+	 * Checks whether any players are in this arena.
+	 * @return true if at least one player is in this arena
+	 */
+	boolean hasPlayers(){
+		if(worldName!=null){
+			World world = getWorld();
+			return world!=null && !world.getPlayers().isEmpty();
+		}
+		for(Player player : Bukkit.getOnlinePlayers()){
+			if(CTWPlugin.getArena(player.getWorld())==this) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether this arena is dormant. Dormant arenas have no players, and their repeating tasks are suspended.
+	 * @return true if this arena is dormant
+	 */
+	public boolean isDormant(){
+		return dormant;
+	}
+	/**
+	 * Puts this arena to sleep or wakes it up, suspending or resuming its repeating tasks.
+	 * <p>
+	 * Captures in progress are left alone. Their cappers are gone, so they fail as usual.
+	 * @param dormant true to make this arena dormant, false to wake it up
+	 */
+	void setDormant(boolean dormant){
+		if(this.dormant==dormant || !active) return;
+		this.dormant = dormant;
+		if(dormant) stopTasks();
+		else startTasks();
+		CTWPlugin.updateDormant();
+	}
+	/**
+	 * Makes this arena dormant if it has no players, or wakes it up if it does.
+	 */
+	void updateDormancy(){
+		setDormant(!hasPlayers());
+	}
+
+	/**
+	 * Starts the repeating tasks that only matter while players are in this arena.
+	 */
+	private void startTasks(){
+		if(trees!=null && treeTaskID==-1){
+			treeTaskID = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> treePowers.tick(), 20, 1);
+		}
+	}
+	/**
+	 * Stops the repeating tasks that only matter while players are in this arena.
+	 */
+	private void stopTasks(){
+		if(treeTaskID!=-1){
+			Bukkit.getScheduler().cancelTask(treeTaskID);
+			treeTaskID = -1;
+			treePowers.clear();
+		}
+	}
+
+
+	/**
+	 * Whether teleportation should be blocked in this arena.
+	 * @return true if teleportation should be blocked
+	 */
+	boolean isTeleportationBlocked(){
+		return getSettings("block-teleportation").getBoolean("block-teleportation");
+	}
+
+	/**
+	 * Gets the base time required to capture a Warpstone, in seconds.
+	 * @return the base cap time, in seconds
+	 */
+	int getBaseCapTime(){
+		return getSettings("base-cap-time").getInt("base-cap-time");
+	}
+	/**
+	 * Gets the percentage that each additional realmmate should reduce the remaining cap time by.
+	 * @return the percentage of remaining time to remove, with each additional player capping
+	 */
+	double getCapTimeReduction(){
+		return getSettings("cap-time-reduction-percentage").getDouble("cap-time-reduction-percentage");
+	}
+	/**
+	 * Gets the max distance a player can move from a Warpstone before they stop capping it.
+	 * @return the max distance for capping a warpstone, in blocks
+	 */
+	double getMaxCapDistance(){
+		return getSettings("max-cap-distance").getDouble("max-cap-distance");
+	}
+
+	/**
+	 * Gets the spawn Warpstone for this arena, if set.
+	 * Each arena sets its own spawn, it is never inherited from the main arena.
+	 * @return the spawn Warpstone for this arena, or null if not set
+	 */
+	Warpstone getSpawn(){
+		return Warpstone.get(settings.getString("spawn-warpstone"));
+	}
+
+
+	/**
+	 * Gets the capture data for a Warpstone in this arena.
+	 * @param warpstone the Warpstone to retrieve for
+	 * @return the WarpstoneCaptureData
+	 */
+	public WarpstoneCaptureData getWarpstoneCaptureData(Warpstone warpstone){
+		WarpstoneCaptureData data = warpstoneData.get(warpstone);
+		if(data==null){
+			data = new WarpstoneCaptureData(warpstone, this, CTWPlugin.getPlugin());
+			warpstoneData.put(warpstone, data);
+			territory.onOwnerChanged(warpstone, null, data.getRealm());
+		}
+		return data;
+	}
+	/**
+	 * Gets the capture data for all Warpstones in this arena that have been loaded.
+	 * @return the loaded WarpstoneCaptureData
+	 */
+	Collection<WarpstoneCaptureData> getAllWarpstoneCaptureData(){
+		return warpstoneData.values();
+	}
+
+	/**
+	 * Sets the last capped Warpstone for a Realm.
+	 * Realm members will respawn at the last capped Warpstone, unless another Realm has capped it.
+	 * @param realm the realm who capped
+	 * @param warpstone the warpstone they capped
+	 */
+	public void setLastRealmCap(Realm realm, Warpstone warpstone){
+		lastRealmCapped.put(realm, warpstone);
+	}
+	/**
+	 * Gets the last Warpstone capped by a Realm.
+	 * Realm members will respawn at the last capped Warpstone, unless another Realm has capped it.
+	 * @param realm the realm
+	 * @return the last Warpstone they capped, or null if they haven't capped
+	 */
+	public Warpstone getLastRealmCap(Realm realm){
+		return lastRealmCapped.get(realm);
+	}
+
+
+	/**
+	 * Gets the Guardian Trees in this arena.
+	 * @return the trees, or an empty set if Guardian Trees are disabled
+	 */
+	public Set<GuardianTree> getTrees(){
+		return trees!=null ? trees : Collections.<GuardianTree>emptySet();
+	}
+	/**
+	 * Gets a specific Guardian Tree in this arena by name.
+	 * @param treeName the name of the tree to get
+	 * @return the tree, or null if it does not exist
+	 */
+	public GuardianTree getTree(String treeName){
+		for(GuardianTree tree : getTrees()) if(tree.getName().equalsIgnoreCase(treeName)) return tree;
+		return null;
+	}
+
+
+	/**
+	 * Gets the territory held by each realm in this arena.
+	 * @return the territory scoreboard
+	 */
+	TerritoryScoreboard getTerritory(){
+		return territory;
+	}
+
+	/**
+	 * Gets the journal of capture events in this arena.
+	 * If the journal is disabled, events recorded to it are ignored.
+	 * @return the capture journal
+	 */
+	CaptureJournal getCaptureJournal(){
+		return captureJournal;
+	}
+
+	/**
+	 * Adds info about this arena to a prompt.
+	 * @param prompt the prompt to add to
+	 */
+	void addInfo(Prompt prompt){
+		prompt.addQuestion("&8-- &9Arena: "+name+" &8--");
+		prompt.addQuestion("- World: "+(worldName!=null ? worldName : "all other worlds")+(!active ? " (not loaded, inactive)" : dormant ? " (dormant)" : ""));
+		prompt.addQuestion("- Warpstones loaded: "+warpstoneData.size()+(trees!=null ? ", Guardian Trees: "+trees.size()+" ("+treePowers.size()+" players queued for powers)" : ""));
+		prompt.addQuestion("- Capture journal: "+(captureJournal.isOpen() ? "recording" : "disabled"));
+	}
+}
@@ -1,17 +1,31 @@
 package com.kylenanakdewa.ctw;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import com.kylenanakdewa.core.common.CommonColors;
+import com.kylenanakdewa.core.common.Utils;
 import com.kylenanakdewa.core.common.prompts.Prompt;
 import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.ctw.CaptureJournal.EventType;
+import com.kylenanakdewa.ctw.PlayerStats.Stat;
 import com.kylenanakdewa.warpstones.Warpstone;
 import com.kylenanakdewa.warpstones.WarpstonesPlugin;
 
+import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
+import org.bukkit.entity.Player;
 
 /**
  * Commands for CTW.
@@ -22,6 +36,30 @@ class CTWCommands implements TabExecutor {
 	@Override
 	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
 
+        // Info - show info about CTW
+        if(args.length==1 && args[0].equalsIgnoreCase("info")){
+            CTWPlugin.getInfo().display(sender);
+            return true;
+        }
+
+        // Stats - show a player's capture stats, or the top players
+        if(args.length>=1 && args[0].equalsIgnoreCase("stats")){
+            return runStats(sender, args);
+        }
+
+        // Top - show the territory held by each realm, in the sender's arena or the one named
+        if(args.length>=1 && args[0].equalsIgnoreCase("top")){
+            Arena arena = args.length>=2 ? CTWPlugin.getArena(args[1]) : null;
+            if(arena==null && args.length<2 && sender instanceof Player) arena = CTWPlugin.getArena(((Player)sender).getWorld());
+            if(arena==null && args.length<2) arena = CTWPlugin.getMainArena();
+            if(arena==null){
+                sender.sendMessage("Arena not found.");
+                return false;
+            }
+            arena.getTerritory().getInfo().display(sender);
+            return true;
+        }
+
         if(args.length>=2){
 
             // Realm - show info about specific Realm
@@ -33,7 +71,10 @@ class CTWCommands implements TabExecutor {
                 prompt.addQuestion("&8--- &9CTW Realm: "+realm.getName()+" ("+realm.getIdentifier()+") &8---");
 
                 prompt.addAnswer("Realm info", "command_realm "+realm.getIdentifier());
-                if(CTWPlugin.getLastRealmCap(realm)!=null) prompt.addAnswer("Last cap (respawn point): "+CTWPlugin.getLastRealmCap(realm).getIdentifier(), "command_ctw info "+CTWPlugin.getLastRealmCap(realm).getIdentifier());
+                for(Arena arena : CTWPlugin.getArenas()){
+                    Warpstone lastCap = arena.getLastRealmCap(realm);
+                    if(lastCap!=null) prompt.addAnswer("Last cap in "+arena.getName()+" (respawn point): "+lastCap.getIdentifier(), "command_ctw info "+lastCap.getIdentifier());
+                }
 
                 for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
                     WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(warpstone);
@@ -47,8 +88,8 @@ class CTWCommands implements TabExecutor {
             }
 
             // Tree - show info about Guardian Tree
-            if(args[0].equalsIgnoreCase("tree") && GuardianTree.getTrees()!=null){
-                GuardianTree tree = GuardianTree.getTree(args[1]);
+            if(args[0].equalsIgnoreCase("tree")){
+                GuardianTree tree = CTWPlugin.getTree(args[1]);
 
                 if(tree==null){
                     sender.sendMessage("Tree not found.");
@@ -59,10 +100,29 @@ class CTWCommands implements TabExecutor {
                 return true;
             }
 
+            // Bulk - apply one change to many Warpstones
+            if(args[0].equalsIgnoreCase("bulk") && args.length>=3){
+                return runBulk(sender, args);
+            }
+
+            // Replay - show Warpstone owners at a point in time, from the capture journal
+            if(args[0].equalsIgnoreCase("replay")){
+                Arena arena = args.length>=3 ? CTWPlugin.getArena(args[2]) : CTWPlugin.getMainArena();
+                if(arena==null){
+                    sender.sendMessage("Arena not found.");
+                    return false;
+                }
+                return runReplay(sender, arena, args[1]);
+            }
+
 
             Warpstone ws = Warpstone.get(args[1]);
             if(ws==null) return false;
             WarpstoneCaptureData wsData = CTWPlugin.getWarpstoneCaptureData(ws);
+            if(wsData==null){
+                sender.sendMessage(ws.getDisplayName()+" ("+ws.getIdentifier()+") is not in a CTW arena.");
+                return true;
+            }
 
             // Info - show info about specific Warpstone
             if(args[0].equalsIgnoreCase("info")){
@@ -85,6 +145,7 @@ class CTWCommands implements TabExecutor {
 
             // Reset - reset realm
             if(args[0].equalsIgnoreCase("reset")){
+                wsData.recordEvent(EventType.ADMIN_OVERRIDE, null, getPlayerId(sender));
                 wsData.setRealm(null);
                 if(wsData.getRealm()!=null) sender.sendMessage(ws.getDisplayName()+" ("+ws.getIdentifier()+") realm: "+wsData.getRealm());
                 else sender.sendMessage(ws.getDisplayName()+" ("+ws.getIdentifier()+") realm cleared");
@@ -95,6 +156,7 @@ class CTWCommands implements TabExecutor {
             if(args[0].equalsIgnoreCase("setrealm")){
                 Realm realm = CTWPlugin.getRealmProvider().getRealm(args[2]);
                 if(realm==null) return false;
+                wsData.recordEvent(EventType.ADMIN_OVERRIDE, realm, getPlayerId(sender));
                 wsData.setRealm(realm);
                 if(wsData.getRealm()!=null) sender.sendMessage(ws.getDisplayName()+" ("+ws.getIdentifier()+") realm: "+wsData.getRealm());
                 else sender.sendMessage(ws.getDisplayName()+" ("+ws.getIdentifier()+") realm cleared");
@@ -103,7 +165,7 @@ class CTWCommands implements TabExecutor {
 
             // StopCap - stop cap in-progress
             if(args[0].equalsIgnoreCase("stopcap")){
-                wsData.stopCapping();
+                wsData.cancelCapping();
                 sender.sendMessage(ws.getDisplayName()+" ("+ws.getIdentifier()+") cap status cleared");
                 return true;
             }
@@ -112,11 +174,162 @@ class CTWCommands implements TabExecutor {
         return false;
 	}
 
+    /**
+     * Applies one change to every Warpstone matching a selector, saving once the whole batch is applied, with a single broadcast.
+     * <p>
+     * Usage: /ctw bulk &lt;enable|disable|reset|stopcap|setrealm&gt; &lt;selector&gt; [realm]
+     * @see WarpstoneSelector
+     */
+    private boolean runBulk(CommandSender sender, String[] args){
+        String action = args[1].toLowerCase();
+        // Enabling has to reach the Warpstones that were disabled
+        Set<WarpstoneCaptureData> selected = WarpstoneSelector.select(args[2], action.equals("enable"));
+        if(selected==null){
+            sender.sendMessage("Invalid selector. Use all, arena:<name>, tree:<name>, realm:<realm|none>, box:<x1>,<z1>,<x2>,<z2>, or id:<pattern>");
+            return false;
+        }
+
+        Realm realm = null;
+        if(action.equals("setrealm")){
+            if(args.length<4) return false;
+            realm = CTWPlugin.getRealmProvider().getRealm(args[3]);
+            if(realm==null) return false;
+        }
+
+        switch(action){
+            case "enable":
+                selected.forEach(data -> data.setCapturable(true));
+                break;
+            case "disable":
+                selected.forEach(data -> data.setCapturable(false));
+                break;
+            case "stopcap":
+                selected.forEach(data -> data.cancelCapping());
+                break;
+            case "reset":
+            case "setrealm":
+                UUID adminId = getPlayerId(sender);
+                for(WarpstoneCaptureData data : selected){
+                    data.recordEvent(EventType.ADMIN_OVERRIDE, realm, adminId);
+                    data.applyRealm(realm);
+                }
+
+                WarpstoneCaptureData.saveAll(selected);
+
+                if(realm!=null) Utils.notifyAll(CommonColors.INFO+"[CTW] "+CommonColors.MESSAGE+selected.size()+" Warpstones were given to "+realm.getColor()+realm.getName());
+                else Utils.notifyAll(CommonColors.INFO+"[CTW] "+CommonColors.MESSAGE+selected.size()+" Warpstones were reset");
+                break;
+            default:
+                return false;
+        }
+
+        sender.sendMessage("Bulk "+action+" applied to "+selected.size()+" Warpstones");
+        return true;
+    }
+
+    /**
+     * Shows the owner of each Warpstone at a point in time, rebuilt from the capture journal.
+     * The journal is read off the main thread.
+     * <p>
+     * Usage: /ctw replay &lt;time&gt; [arena], where time is a duration ago (30m, 2h, 3d) or a date (2018-06-01T18:00)
+     */
+    private boolean runReplay(CommandSender sender, Arena arena, String timeString){
+        long time = parseTime(timeString);
+        if(time<0){
+            sender.sendMessage("Invalid time. Use a duration ago (30m, 2h, 3d) or a date (2018-06-01T18:00)");
+            return false;
+        }
+
+        CaptureJournal.Replay replay = arena.getCaptureJournal().snapshot();
+        CTWPlugin plugin = CTWPlugin.getPlugin();
+        sender.sendMessage("Replaying capture journal...");
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                Map<String,String> owners = replay.getOwnership(time);
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                    Prompt prompt = new Prompt();
+                    prompt.addQuestion("&8--- &9CTW Owners in "+arena.getName()+" at "+new Date(time)+" &8---");
+                    owners.forEach((warpstone, realm) -> prompt.addAnswer(warpstone+" - "+(realm!=null ? realm : "neutral"), "command_ctw info "+warpstone));
+                    if(owners.isEmpty()) prompt.addQuestion("No captures recorded before this time.");
+                    prompt.display(sender);
+                });
+            } catch(IOException e){
+                Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage("Failed to read capture journal: "+e.getMessage()));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Parses a duration ago (30m, 2h, 3d) or a date (2018-06-01T18:00) into epoch milliseconds.
+     * @return the time, or -1 if it could not be parsed
+     */
+    private static long parseTime(String timeString){
+        try {
+            char unit = Character.toLowerCase(timeString.charAt(timeString.length()-1));
+            long multiplier = unit=='m' ? 60_000L : unit=='h' ? 3_600_000L : unit=='d' ? 86_400_000L : 0;
+            if(multiplier!=0) return System.currentTimeMillis() - Long.parseLong(timeString.substring(0, timeString.length()-1))*multiplier;
+            return LocalDateTime.parse(timeString).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch(NumberFormatException | DateTimeParseException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Shows a player's capture stats, or the top players for a stat.
+     * Usage: /ctw stats [player], or /ctw stats top [started|completed|time|penalties]
+     */
+    private boolean runStats(CommandSender sender, String[] args){
+        PlayerStats stats = CTWPlugin.getPlayerStats();
+
+        if(args.length>=2 && args[1].equalsIgnoreCase("top")){
+            Stat stat = args.length>=3 ? getStat(args[2]) : Stat.CAPS_COMPLETED;
+            if(stat==null){
+                sender.sendMessage("Unknown stat, must be started, completed, time or penalties.");
+                return false;
+            }
+            stats.getTopInfo(stat).display(sender);
+            return true;
+        }
+
+        Player player = args.length>=2 ? Bukkit.getPlayerExact(args[1]) : (sender instanceof Player ? (Player)sender : null);
+        if(player==null){
+            sender.sendMessage("Player not found.");
+            return false;
+        }
+        stats.getInfo(player, prompt -> prompt.display(sender));
+        return true;
+    }
+    private static Stat getStat(String name){
+        switch(name.toLowerCase()){
+            case "started": return Stat.CAPS_STARTED;
+            case "completed": return Stat.CAPS_COMPLETED;
+            case "time": return Stat.CAP_TIME;
+            case "penalties": return Stat.PENALTIES;
+            default: return null;
+        }
+    }
+
+    /**
+     * Gets the UUID of a command sender, for the capture journal.
+     * @return the player's UUID, or null if the sender is not a player
+     */
+    private static UUID getPlayerId(CommandSender sender){
+        return sender instanceof Player ? ((Player)sender).getUniqueId() : null;
+    }
+
     @Override
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
         if(args.length<2){
-            if(GuardianTree.getTrees()!=null) return Arrays.asList("info", "realm", "tree");
-            return Arrays.asList("info", "realm");
+            if(!CTWPlugin.getAllTrees().isEmpty()) return Arrays.asList("info", "top", "stats", "realm", "tree", "bulk", "replay");
+            return Arrays.asList("info", "top", "stats", "realm", "bulk", "replay");
+        }
+        if(args[0].equalsIgnoreCase("bulk")){
+            if(args.length==2) return Arrays.asList("enable", "disable", "reset", "stopcap", "setrealm");
+            if(args.length==3) return Arrays.asList("all", "arena:", "tree:", "realm:", "box:", "id:");
+        }
+        if(args[0].equalsIgnoreCase("stats") && args.length==3 && args[1].equalsIgnoreCase("top")){
+            return Arrays.asList("started", "completed", "time", "penalties");
         }
         if(args.length==2){
             if(args[0].equalsIgnoreCase("info")) return Arrays.asList("");
@@ -125,12 +338,17 @@ class CTWCommands implements TabExecutor {
                 CTWPlugin.getRealmProvider().getAllRealms().forEach(realm -> realmNames.add(realm.getIdentifier()));
                 return realmNames;
             }
-            if(args[0].equalsIgnoreCase("tree") && GuardianTree.getTrees()!=null){
+            if(args[0].equalsIgnoreCase("tree")){
                 List<String> treeNames = new ArrayList<String>();
-                GuardianTree.getTrees().forEach(tree -> treeNames.add(tree.getName()));
+                CTWPlugin.getAllTrees().forEach(tree -> treeNames.add(tree.getName()));
                 return treeNames;
             }
         }
+        if((args.length==3 && args[0].equalsIgnoreCase("replay")) || (args.length==2 && args[0].equalsIgnoreCase("top"))){
+            List<String> arenaNames = new ArrayList<String>();
+            CTWPlugin.getArenas().forEach(arena -> arenaNames.add(arena.getName()));
+            return arenaNames;
+        }
         return Arrays.asList("");
     }
 
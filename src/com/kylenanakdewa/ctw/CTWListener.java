@@ -12,7 +12,10 @@ import com.kylenanakdewa.warpstones.events.PlayerWarpEvent.WarpCause;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerBedEnterEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerRespawnEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.event.player.PlayerTeleportEvent.TeleportCause;
@@ -22,9 +25,10 @@ import org.bukkit.event.player.PlayerTeleportEvent.TeleportCause;
  * <p>
  * Handles the following:
  * <ul>
- * <li>Warpstone Activation (for capturing, and blocking use of captured warpstones)
- * <li>Warping (blocking use of captured warpstones, and blocking warp commands on CTW world)
- * <li>Teleporting (blocking use of any teleport commands or portals)
+ * <li>Warpstone Activation (for capturing, and blocking use of captured warpstones, limited per player)
+ * <li>Warping (blocking use of captured warpstones, and blocking warp commands in arenas)
+ * <li>Teleporting (blocking use of any teleport commands or portals in arenas)
+ * <li>Joining, leaving and changing worlds (putting empty arenas to sleep, and waking them up)
  * </ul>
  * @author Kyle Nanakdewa
  */
@@ -35,38 +39,80 @@ public final class CTWListener implements Listener {
 	 */
 	@EventHandler
 	public void onWarpstoneActivation(WarpstoneActivateEvent event){
+		// Players must be at the Warpstone to activate it, so nothing to do if every arena is empty
+		if(CTWPlugin.isDormant()) return;
+
 		WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(event.getWarpstone());
 
-		// Only pass it on if the warpstone is capturable
-		if(data.isCapturable()){
+		// Only pass it on if the warpstone is in an arena, and capturable
+		if(data!=null && data.isCapturable()){
+			// Drop spam-clicks before any realm lookups or messages
+			if(!CTWPlugin.getActivationLimiter().tryAcquire(event.getPlayer())){
+				event.setCancelled(true);
+				return;
+			}
+
 			data.onActivation(event);
 		}
 	}
 
+	/**
+	 * Wake up the arena a player joins in, and show its sidebar.
+	 */
+	@EventHandler
+	public void onJoin(PlayerJoinEvent event){
+		CTWPlugin.wakeArena(event.getPlayer().getWorld());
+		CTWPlugin.updateSidebar(event.getPlayer());
+	}
+
+	/**
+	 * Wake up the arena a player enters and show its sidebar, and check if the one they left is now empty.
+	 */
+	@EventHandler
+	public void onChangedWorld(PlayerChangedWorldEvent event){
+		CTWPlugin.wakeArena(event.getPlayer().getWorld());
+		CTWPlugin.updateSidebar(event.getPlayer());
+		CTWPlugin.checkDormancy();
+	}
+
+	/**
+	 * Clean up per-player data when a player leaves, and check if their arena is now empty.
+	 */
+	@EventHandler
+	public void onQuit(PlayerQuitEvent event){
+		CTWPlugin.getActivationLimiter().forget(event.getPlayer());
+		CTWPlugin.getCaptureAdmission().forget(event.getPlayer());
+		CTWPlugin.removeSidebar(event.getPlayer());
+		CTWPlugin.checkDormancy();
+	}
+
 
 	/**
-	 * If player warps, and the destination is a warpstone they don't own, or they are on the CTW world (if set), block warp.
+	 * If player warps, and the destination is a warpstone they don't own, or they are in an arena, block warp.
 	 */
 	@EventHandler
 	public void onWarp(PlayerWarpEvent event){
+		// The player can only be in an arena if one is awake
+		Arena arena = CTWPlugin.isDormant() ? null : CTWPlugin.getArena(event.getPlayer().getWorld());
+
 		// Override spawn warpstone
-		if(event.isSpawnWarpstone() && CTWPlugin.getCTWSpawn()!=null && (CTWPlugin.getCTWWorld()==null || event.getPlayer().getLocation().getWorld().equals(CTWPlugin.getCTWWorld()))){
+		if(event.isSpawnWarpstone() && arena!=null && arena.getSpawn()!=null){
 			event.setCancelled(true);
-			new WarpPlayer(event.getPlayer()).warp(CTWPlugin.getCTWSpawn(), false, event.getCause());
+			new WarpPlayer(event.getPlayer()).warp(arena.getSpawn(), false, event.getCause());
 			return;
 		}
 
 		// Prevent warping to lost warpstones
 		WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(event.getWarpstone());
 		PlayerCharacter character = PlayerCharacter.getCharacter(event.getPlayer());
-		if(data.isCapturable() && !event.isSpawnWarpstone() && !event.getCause().equals(WarpCause.SHARD) && (character.getRealm()==null || character.getRealm().getTopParentRealm()==null || data.getRealm()==null || !data.getRealm().equals(character.getRealm().getTopParentRealm()))){
+		if(data!=null && data.isCapturable() && !event.isSpawnWarpstone() && !event.getCause().equals(WarpCause.SHARD) && (character.getRealm()==null || character.getRealm().getTopParentRealm()==null || data.getRealm()==null || !data.getRealm().equals(character.getRealm().getTopParentRealm()))){
 			Utils.sendActionBar(event.getPlayer(), CommonColors.ERROR+"Your realm has lost this Warpstone!");
 			event.setCancelled(true);
 			return;
 		}
 
-		// Prevent warp command on CTW world
-		if(CTWPlugin.isTeleportationBlocked() && !event.getPlayer().hasPermission("warpstones.tp.nolimits") && event.getCause().equals(WarpCause.COMMAND) && (CTWPlugin.getCTWWorld()==null || event.getPlayer().getLocation().getWorld().equals(CTWPlugin.getCTWWorld()))){
+		// Prevent warp command in arenas
+		if(arena!=null && arena.isTeleportationBlocked() && !event.getPlayer().hasPermission("warpstones.tp.nolimits") && event.getCause().equals(WarpCause.COMMAND)){
 			Utils.sendActionBar(event.getPlayer(), CommonColors.ERROR+"You must use Warpstones on this world!");
 			event.setCancelled(true);
 			return;
@@ -75,45 +121,47 @@ public final class CTWListener implements Listener {
 
 
 	/**
-	 * Block portal use on the CTW world.
+	 * Block portal use in arenas.
 	 */
 	@EventHandler
 	public void onTeleport(PlayerTeleportEvent event){
-		if(!CTWPlugin.isTeleportationBlocked()) return;
-
 		TeleportCause cause = event.getCause();
-		if((CTWPlugin.getCTWWorld()==null || event.getFrom().getWorld().equals(CTWPlugin.getCTWWorld()) || event.getTo().getWorld().equals(CTWPlugin.getCTWWorld())) && 
-		// Block if cause is a portal
-		(cause.equals(TeleportCause.END_PORTAL) || cause.equals(TeleportCause.NETHER_PORTAL))){
+		// Only block if cause is a portal
+		if(!cause.equals(TeleportCause.END_PORTAL) && !cause.equals(TeleportCause.NETHER_PORTAL)) return;
+
+		Arena fromArena = CTWPlugin.getArena(event.getFrom().getWorld());
+		Arena toArena = event.getTo()!=null ? CTWPlugin.getArena(event.getTo().getWorld()) : null;
+		if((fromArena!=null && fromArena.isTeleportationBlocked()) || (toArena!=null && toArena.isTeleportationBlocked())){
 			Utils.sendActionBar(event.getPlayer(), CommonColors.ERROR+"You must use Warpstones on this world!");
 			event.setCancelled(true);
 		}
 	}
 
 	/**
-	 * Block teleportation commands on the CTW world.
+	 * Block teleportation commands in arenas.
 	 */
 	@EventHandler
 	public void onCommand(PlayerCommandPreprocessEvent event){
-		if(!CTWPlugin.isTeleportationBlocked() || event.getPlayer().hasPermission("warpstones.tp.nolimits")) return;
-
-		if(CTWPlugin.getCTWWorld()==null || event.getPlayer().getLocation().getWorld().equals(CTWPlugin.getCTWWorld())){
-			String command = event.getMessage().toLowerCase().split(" ", 2)[0];
-			if(command.endsWith("tp") || command.endsWith("tpa") || command.endsWith("tphere") || command.endsWith("tpahere")
-			 || command.endsWith("warp") || command.endsWith("ws") || command.endsWith("warpstones")
-			 || command.endsWith("spawn") || command.endsWith("home") || command.endsWith("last")){
-				Utils.sendActionBar(event.getPlayer(), CommonColors.ERROR+"You must use Warpstones on this world!");
-				event.setCancelled(true);
-			}
+		if(CTWPlugin.isDormant()) return;
+
+		Arena arena = CTWPlugin.getArena(event.getPlayer().getWorld());
+		if(arena==null || !arena.isTeleportationBlocked() || event.getPlayer().hasPermission("warpstones.tp.nolimits")) return;
+
+		String command = event.getMessage().toLowerCase().split(" ", 2)[0];
+		if(command.endsWith("tp") || command.endsWith("tpa") || command.endsWith("tphere") || command.endsWith("tpahere")
+		 || command.endsWith("warp") || command.endsWith("ws") || command.endsWith("warpstones")
+		 || command.endsWith("spawn") || command.endsWith("home") || command.endsWith("last")){
+			Utils.sendActionBar(event.getPlayer(), CommonColors.ERROR+"You must use Warpstones on this world!");
+			event.setCancelled(true);
 		}
 	}
 
 	/**
-	 * Block bed usage on CTW world.
+	 * Block bed usage in arenas.
 	 */
 	@EventHandler
 	public void onBedEnter(PlayerBedEnterEvent event){
-		if(CTWPlugin.getCTWWorld()==null || event.getPlayer().getLocation().getWorld().equals(CTWPlugin.getCTWWorld())){
+		if(!CTWPlugin.isDormant() && CTWPlugin.getArena(event.getPlayer().getWorld())!=null){
 			Utils.sendActionBar(event.getPlayer(), CommonColors.ERROR+"You must use Warpstones on this world!");
 			event.setCancelled(true);
 		}
@@ -121,41 +169,44 @@ public final class CTWListener implements Listener {
 
 
 	/**
-	 * Respawn players at last Warpstone they capped, or the CTW spawn.
+	 * Respawn players at last Warpstone they capped, or the arena spawn.
 	 */
 	@EventHandler
 	public void onRespawn(PlayerRespawnEvent event){
+		if(CTWPlugin.isDormant()) return;
+
+		Arena arena = CTWPlugin.getArena(event.getPlayer().getWorld());
+		if(arena==null) return;
+
 		PlayerCharacter character = PlayerCharacter.getCharacter(event.getPlayer());
-		if(CTWPlugin.getCTWWorld()==null || event.getPlayer().getLocation().getWorld().equals(CTWPlugin.getCTWWorld())){
-			Warpstone respawnLoc = null;
-			String message = null;
-
-			// Attempt to get realm last capped
-			if(character.getRealm()!=null && character.getRealm().getTopParentRealm()!=null){
-				respawnLoc = CTWPlugin.getLastRealmCap(character.getRealm().getTopParentRealm());
-
-				// Make sure warpstone wasn't lost
-				if(respawnLoc!=null){
-					WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(respawnLoc);
-					if(data.getRealm()==null || !data.getRealm().equals(character.getRealm().getTopParentRealm())){
-						respawnLoc = CTWPlugin.getCTWSpawn();
-						message = CommonColors.ERROR+"Your realm has lost the last Warpstone captured! Respawning at CTW spawn";
-					}
-					else message = CommonColors.INFO+"Respawning at the last Warpstone your realm captured";
-				}
-			}
+		Warpstone respawnLoc = null;
+		String message = null;
 
-			// If that's null, use spawn instead
-			if(respawnLoc==null){
-				respawnLoc = CTWPlugin.getCTWSpawn();
-				message = CommonColors.INFO+"Respawning at CTW spawn";
-			}
+		// Attempt to get realm last capped
+		if(character.getRealm()!=null && character.getRealm().getTopParentRealm()!=null){
+			respawnLoc = arena.getLastRealmCap(character.getRealm().getTopParentRealm());
 
+			// Make sure warpstone wasn't lost
 			if(respawnLoc!=null){
-				event.setRespawnLocation(respawnLoc.getLocation());
-				Utils.sendActionBar(event.getPlayer(), message);
+				WarpstoneCaptureData data = arena.getWarpstoneCaptureData(respawnLoc);
+				if(data.getRealm()==null || !data.getRealm().equals(character.getRealm().getTopParentRealm())){
+					respawnLoc = arena.getSpawn();
+					message = CommonColors.ERROR+"Your realm has lost the last Warpstone captured! Respawning at CTW spawn";
+				}
+				else message = CommonColors.INFO+"Respawning at the last Warpstone your realm captured";
 			}
 		}
+
+		// If that's null, use spawn instead
+		if(respawnLoc==null){
+			respawnLoc = arena.getSpawn();
+			message = CommonColors.INFO+"Respawning at CTW spawn";
+		}
+
+		if(respawnLoc!=null){
+			event.setRespawnLocation(respawnLoc.getLocation());
+			Utils.sendActionBar(event.getPlayer(), message);
+		}
 	}
 
 }
\ No newline at end of file
@@ -1,15 +1,25 @@
 package com.kylenanakdewa.ctw;
 
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.kylenanakdewa.core.CorePlugin;
+import com.kylenanakdewa.core.common.prompts.Prompt;
 import com.kylenanakdewa.core.realms.Realm;
 import com.kylenanakdewa.core.realms.RealmProvider;
 import com.kylenanakdewa.warpstones.Warpstone;
 
 import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
 /**
@@ -22,30 +32,149 @@ import org.bukkit.plugin.java.JavaPlugin;
 public final class CTWPlugin extends JavaPlugin {
 	private static CTWPlugin plugin;
 
-	/** The WarpstoneCaptureData. */
-	private static Map<Warpstone,WarpstoneCaptureData> warpstoneData = new HashMap<Warpstone,WarpstoneCaptureData>();
+	/** The arenas, by world name. */
+	private static Map<String,Arena> arenasByWorld = new HashMap<String,Arena>();
+	/** The arenas, by arena name. */
+	private static Map<String,Arena> arenas = new HashMap<String,Arena>();
+	/** The arena that runs on all worlds not used by another arena, or null if there is none. */
+	private static Arena wildcardArena;
 
-	/** The last Warpstone each Realm capped. */
-	private static Map<Realm,Warpstone> lastRealmCapped = new HashMap<Realm,Warpstone>();
+	/** Whether every arena is dormant. Listeners check this first, so an empty server costs almost nothing. */
+	private static volatile boolean dormant;
+	/** Whether a dormancy check is scheduled for the next tick. */
+	private static boolean dormancyCheckPending;
+
+	/** The limiter for Warpstone activations. */
+	private static ActivationLimiter activationLimiter;
+	/** The replication of captures to other servers. */
+	private static ClusterSync clusterSync;
+	/** The limits on captures running at once. */
+	private static CaptureAdmission captureAdmission;
+	/** The capture stats of each player. */
+	private static PlayerStats playerStats;
 
 
 	@Override
 	public void onEnable(){
 		plugin = this;
 		saveDefaultConfig();
+		activationLimiter = new ActivationLimiter(getConfig().getDouble("activation-rate", 2), getConfig().getInt("activation-burst", 3));
+		captureAdmission = new CaptureAdmission(getConfig().getInt("max-captures"), getConfig().getInt("max-captures-per-realm"), !getConfig().getString("capture-limit-action", "queue").equalsIgnoreCase("reject"));
+		playerStats = new PlayerStats(new File(getDataFolder(), "stats.dat"));
+		playerStats.start(this, Math.max(1, getConfig().getInt("stats-flush-interval", 30))*20);
+
+		loadArenas();
+		clusterSync = loadClusterSync();
+		clusterSync.start();
+		arenas.values().forEach(arena -> arena.enable(this));
+		updateDormant();
+		Bukkit.getOnlinePlayers().forEach(player -> updateSidebar(player));
+
 		getServer().getPluginManager().registerEvents(new CTWListener(), this);
 		getCommand("ctw").setExecutor(new CTWCommands());
+	}
+
+	@Override
+	public void onDisable(){
+		arenas.values().forEach(arena -> arena.disable());
+		if(clusterSync!=null) clusterSync.stop();
+		if(playerStats!=null) playerStats.flushNow();
+	}
+
+	/**
+	 * Loads the main arena from the top of the config, and any other arenas from the arenas section.
+	 */
+	private void loadArenas(){
+		arenas.clear();
+		arenasByWorld.clear();
+		wildcardArena = null;
+
+		addArena(new Arena(Arena.MAIN, getConfig(), getConfig()));
+		ConfigurationSection arenaSection = getConfig().getConfigurationSection("arenas");
+		if(arenaSection!=null){
+			for(String arenaName : arenaSection.getKeys(false)){
+				if(arenaName.equalsIgnoreCase(Arena.MAIN) || !arenaSection.isConfigurationSection(arenaName)){
+					getLogger().warning("Invalid arena "+arenaName+", skipping");
+					continue;
+				}
+				addArena(new Arena(arenaName, arenaSection.getConfigurationSection(arenaName), getConfig()));
+			}
+		}
+	}
+	private void addArena(Arena arena){
+		String worldName = arena.getWorldName();
+		if(worldName==null){
+			if(wildcardArena!=null){
+				getLogger().warning("Arena "+arena.getName()+" has no world, but arena "+wildcardArena.getName()+" already runs on all worlds, skipping");
+				return;
+			}
+			wildcardArena = arena;
+		} else if(arenasByWorld.containsKey(worldName)){
+			getLogger().warning("Arena "+arena.getName()+" uses world "+worldName+", which already has arena "+arenasByWorld.get(worldName).getName()+", skipping");
+			return;
+		} else arenasByWorld.put(worldName, arena);
+
+		arenas.put(arena.getName().toLowerCase(), arena);
+		getLogger().info("Loaded arena "+arena.getName()+" on "+(worldName!=null ? "world "+worldName : "all other worlds"));
+	}
+
+	/**
+	 * Loads the cluster settings from the cluster section of the config.
+	 * @return the cluster sync, disabled if cluster mode is off or misconfigured
+	 */
+	private ClusterSync loadClusterSync(){
+		ConfigurationSection section = getConfig().getConfigurationSection("cluster");
+		if(section==null || !section.getBoolean("enabled")) return new ClusterSync(this, null, null);
 
-		if(getConfig().getBoolean("enable-guardian-trees")) GuardianTree.enableGuardianTrees(this);
+		String nodeId = section.getString("node-id", "");
+		if(nodeId.isEmpty()) nodeId = "server-"+getServer().getPort();
+
+		ClusterTransport transport;
+		if(section.getString("transport", "tcp").equalsIgnoreCase("loopback")){
+			transport = new LoopbackTransport(section.getString("loopback-channel", "ctw"));
+		} else {
+			// Peers are trusted with every capture, so never run without a secret
+			String secret = section.getString("secret", "");
+			if(secret.isEmpty()){
+				getLogger().warning("Cluster mode needs a secret shared by every server, cluster mode disabled");
+				return new ClusterSync(this, null, null);
+			}
+			InetAddress bindAddress;
+			try {
+				bindAddress = InetAddress.getByName(section.getString("bind-address", "127.0.0.1"));
+			} catch(UnknownHostException e){
+				getLogger().warning("Invalid cluster bind-address "+section.getString("bind-address")+", cluster mode disabled");
+				return new ClusterSync(this, null, null);
+			}
+
+			List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+			for(String peer : section.getStringList("peers")){
+				String[] hostAndPort = peer.split(":");
+				try {
+					peers.add(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+				} catch(ArrayIndexOutOfBoundsException | IllegalArgumentException e){
+					getLogger().warning("Invalid cluster peer "+peer+", must be host:port, skipping");
+				}
+			}
+			transport = new TcpTransport(bindAddress, section.getInt("port", 25590), peers, secret);
+		}
+		return new ClusterSync(this, nodeId, transport);
 	}
 
 	/**
-	 * Gets the World that CTW is enabled on. If null, CTW is enabled on all worlds.
-	 * @return the world for CTW, or null if all worlds are enabled
+	 * Gets the CTW plugin.
+	 * @return the plugin instance
+	 */
+	static CTWPlugin getPlugin(){
+		return plugin;
+	}
+
+	/**
+	 * Gets the World that the main arena is enabled on. If null, the main arena is enabled on all worlds not used by another arena.
+	 * @return the world for the main arena, or null if all worlds are enabled
 	 */
 	public static World getCTWWorld(){
-		String worldName = plugin.getConfig().getString("world");
-		return worldName==null ? null : Bukkit.getWorld(worldName);
+		return getMainArena().getWorld();
 	}
 
 	/**
@@ -58,75 +187,203 @@ public final class CTWPlugin extends JavaPlugin {
 
 
 	/**
-	 * Whether teleportation should be blocked on the CTW world.
-	 * @return true if teleportation should be blocked
+	 * Gets the main arena, set up at the top of config.yml.
+	 * @return the main arena
+	 */
+	public static Arena getMainArena(){
+		return arenas.get(Arena.MAIN);
+	}
+	/**
+	 * Gets an arena by name.
+	 * @param name the name of the arena
+	 * @return the arena, or null if it does not exist
+	 */
+	public static Arena getArena(String name){
+		return arenas.get(name.toLowerCase());
+	}
+	/**
+	 * Gets the arena running on a World.
+	 * Worlds set up for an inactive arena are not part of any arena.
+	 * @param world the world
+	 * @return the arena for the world, or null if CTW is not active on the world
+	 */
+	public static Arena getArena(World world){
+		if(world==null) return null;
+		Arena arena = arenasByWorld.get(world.getName());
+		if(arena==null) arena = wildcardArena;
+		return arena!=null && arena.isActive() ? arena : null;
+	}
+	/**
+	 * Gets all arenas.
+	 * @return the arenas on this server
+	 */
+	public static Collection<Arena> getArenas(){
+		return arenas.values();
+	}
+
+
+	/**
+	 * Whether every arena is dormant, with no players in any of them.
+	 * Listeners for events that only happen to players in an arena can skip all work while this is true.
+	 * @return true if all arenas are dormant
+	 */
+	public static boolean isDormant(){
+		return dormant;
+	}
+	/**
+	 * Updates whether every arena is dormant, after an arena goes dormant or wakes up.
+	 */
+	static void updateDormant(){
+		boolean allDormant = true;
+		for(Arena arena : arenas.values()) allDormant &= arena.isDormant();
+		dormant = allDormant;
+	}
+	/**
+	 * Wakes up the arena on a World, when a player enters it.
+	 * @param world the world the player entered
+	 */
+	static void wakeArena(World world){
+		Arena arena = getArena(world);
+		if(arena!=null) arena.setDormant(false);
+	}
+	/**
+	 * Shows a player the territory sidebar for the arena they are in, or removes it if they left the arena.
+	 * @param player the player to update
+	 */
+	static void updateSidebar(Player player){
+		Arena arena = getArena(player.getWorld());
+		for(Arena otherArena : arenas.values()){
+			if(otherArena!=arena) otherArena.getTerritory().hideSidebar(player);
+		}
+		if(arena!=null) arena.getTerritory().showSidebar(player);
+	}
+	/**
+	 * Removes the territory sidebar from a player who is leaving, giving back the scoreboard they had before.
+	 * @param player the player to update
+	 */
+	static void removeSidebar(Player player){
+		arenas.values().forEach(arena -> arena.getTerritory().hideSidebar(player));
+	}
+	/**
+	 * Checks on the next tick whether any arenas have emptied, and makes them dormant.
+	 * Waits a tick so players who are leaving have been removed from their world.
+	 */
+	static void checkDormancy(){
+		if(dormancyCheckPending) return;
+		dormancyCheckPending = true;
+		Bukkit.getScheduler().runTask(plugin, () -> {
+			dormancyCheckPending = false;
+			arenas.values().forEach(arena -> arena.updateDormancy());
+		});
+	}
+
+
+	/**
+	 * Gets the limiter for Warpstone activations.
+	 * @return the activation limiter
 	 */
-	static boolean isTeleportationBlocked(){
-		return plugin.getConfig().getBoolean("block-teleportation");
+	static ActivationLimiter getActivationLimiter(){
+		return activationLimiter;
 	}
 
 	/**
-	 * Gets the base time required to capture a Warpstone, in seconds.
-	 * @return the base cap time, in seconds
+	 * Gets the limits on captures running at once.
+	 * @return the capture admission control
 	 */
-	static int getBaseCapTime(){
-		return plugin.getConfig().getInt("base-cap-time");
+	static CaptureAdmission getCaptureAdmission(){
+		return captureAdmission;
 	}
+
 	/**
-	 * Gets the percentage that each additional realmmate should reduce the remaining cap time by.
-	 * @return the percentage of remaining time to remove, with each additional player capping
+	 * Gets the capture stats of each player.
+	 * @return the player stats
 	 */
-	static double getCapTimeReduction(){
-		return plugin.getConfig().getDouble("cap-time-reduction-percentage");
+	static PlayerStats getPlayerStats(){
+		return playerStats;
 	}
+
 	/**
-	 * Gets the max distance a player can move from a Warpstone before they stop capping it.
-	 * @return the max distance for capping a warpstone, in blocks
+	 * Gets the replication of captures to other servers.
+	 * @return the cluster sync, which does nothing if cluster mode is disabled
 	 */
-	static double getMaxCapDistance(){
-		return plugin.getConfig().getDouble("max-cap-distance");
+	static ClusterSync getClusterSync(){
+		return clusterSync;
 	}
 
 	/**
-	 * Gets the spawn Warpstone for the CTW world, if set.
-	 * @return the spawn Warpstone for the CTW world, or null if not set
+	 * Gets an info prompt about the state of CTW on this server.
+	 * @return a Prompt with information about CTW
 	 */
-	static Warpstone getCTWSpawn(){
-		return Warpstone.get(plugin.getConfig().getString("spawn-warpstone"));
+	static Prompt getInfo(){
+		Prompt prompt = new Prompt();
+		prompt.addQuestion("&8--- &9Capture The Warpstone &8---");
+		if(activationLimiter.isEnabled()) prompt.addQuestion("- Activations dropped by limiter: "+activationLimiter.getDroppedCount());
+		else prompt.addQuestion("- Activation limiter disabled");
+		captureAdmission.addInfo(prompt);
+		prompt.addQuestion("- Cluster: "+clusterSync.getDescription());
+		arenas.values().forEach(arena -> arena.addInfo(prompt));
+		return prompt;
 	}
 
 
 	/**
-	 * Gets the capture data for a Warpstone.
+	 * Gets the capture data for a Warpstone, from the arena on the Warpstone's world.
+	 * <p>
+	 * Unlike before arenas were added, this returns null for Warpstones that are not in an active arena,
+	 * so callers must check the result.
 	 * @param warpstone the Warpstone to retrieve for
-	 * @return the WarpstoneCaptureData
+	 * @return the WarpstoneCaptureData, or null if the Warpstone is not in an arena
 	 */
 	public static WarpstoneCaptureData getWarpstoneCaptureData(Warpstone warpstone){
-		WarpstoneCaptureData data = warpstoneData.get(warpstone);
-		if(data==null){
-			data = new WarpstoneCaptureData(warpstone, plugin);
-			warpstoneData.put(warpstone, data);
-		}
-		return data;
+		if(warpstone==null || warpstone.getLocation()==null) return null;
+		Arena arena = getArena(warpstone.getLocation().getWorld());
+		return arena!=null ? arena.getWarpstoneCaptureData(warpstone) : null;
 	}
 
 
 	/**
-	 * Sets the last capped Warpstone for a Realm.
+	 * Sets the last capped Warpstone for a Realm, in the main arena.
 	 * Realm members will respawn at the last capped Warpstone, unless another Realm has capped it.
 	 * @param realm the realm who capped
 	 * @param warpstone the warpstone they capped
+	 * @deprecated each arena tracks its own last caps, use {@link Arena#setLastRealmCap(Realm, Warpstone)}
 	 */
+	@Deprecated
 	public static void setLastRealmCap(Realm realm, Warpstone warpstone){
-		lastRealmCapped.put(realm, warpstone);
+		getMainArena().setLastRealmCap(realm, warpstone);
 	}
 	/**
-	 * Gets the last Warpstone capped by a Realm.
+	 * Gets the last Warpstone capped by a Realm, in the main arena.
 	 * Realm members will respawn at the last capped Warpstone, unless another Realm has capped it.
 	 * @param realm the realm
 	 * @return the last Warpstone they capped, or null if they haven't capped
+	 * @deprecated each arena tracks its own last caps, use {@link Arena#getLastRealmCap(Realm)}
 	 */
+	@Deprecated
 	public static Warpstone getLastRealmCap(Realm realm){
-		return lastRealmCapped.get(realm);
+		return getMainArena().getLastRealmCap(realm);
+	}
+
+
+	/**
+	 * Gets the Guardian Trees in all arenas.
+	 * @return the trees on this server
+	 */
+	static List<GuardianTree> getAllTrees(){
+		List<GuardianTree> trees = new ArrayList<GuardianTree>();
+		arenas.values().forEach(arena -> trees.addAll(arena.getTrees()));
+		return trees;
+	}
+	/**
+	 * Gets a specific Guardian Tree by name, from any arena.
+	 * @param treeName the name of the tree to get
+	 * @return the tree, or null if it does not exist
+	 */
+	static GuardianTree getTree(String treeName){
+		for(Arena arena : arenas.values()){
+			GuardianTree tree = arena.getTree(treeName);
+			if(tree!=null) return tree;
+		}
+		return null;
 	}
 }
\ No newline at end of file
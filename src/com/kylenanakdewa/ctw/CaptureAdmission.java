@@ -0,0 +1,208 @@
+package com.kylenanakdewa.ctw;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.kylenanakdewa.core.common.Utils;
+import com.kylenanakdewa.core.common.prompts.Prompt;
+import com.kylenanakdewa.core.realms.Realm;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+/**
+ * Limits how many captures can run at once, per realm and on the whole server.
+ * <p>
+ * Every capture runs its own timer with boss bars, particles and sounds, so these limits keep the cost of
+ * captures bounded. When a limit is reached, new captures are either rejected, or queued and started
+ * in order as other captures end.
+ * @author Kyle Nanakdewa
+ */
+final class CaptureAdmission {
+
+	/**
+	 * A capture waiting for a free slot.
+	 */
+	private static final class QueuedCapture {
+		private final WarpstoneCaptureData data;
+		private final Player player;
+		private final Realm realm;
+
+		private QueuedCapture(WarpstoneCaptureData data, Player player, Realm realm){
+			this.data = data;
+			this.player = player;
+			this.realm = realm;
+		}
+	}
+
+	/** The most captures that can run at once on the server, or 0 for no limit. */
+	private final int maxCaptures;
+	/** The most captures that can run at once for each realm, or 0 for no limit. */
+	private final int maxCapturesPerRealm;
+	/** Whether to queue captures over the limit, instead of rejecting them. */
+	private final boolean queue;
+
+	/** The number of captures running. */
+	private int captures;
+	/** The number of captures running for each realm, by realm identifier. */
+	private final Map<String,Integer> realmCaptures = new HashMap<String,Integer>();
+	/** The captures waiting for a free slot, in order, by player. Each player can only wait for one capture. */
+	private final Map<Player,QueuedCapture> queued = new LinkedHashMap<Player,QueuedCapture>();
+	/** The number of captures rejected since the server started. */
+	private long rejected;
+	/** Whether queued captures will be started on the next tick. */
+	private boolean admitPending;
+
+
+	/**
+	 * Creates the admission control.
+	 * @param maxCaptures the most captures that can run at once on the server, or 0 for no limit
+	 * @param maxCapturesPerRealm the most captures that can run at once for each realm, or 0 for no limit
+	 * @param queue true to queue captures over the limit, false to reject them
+	 */
+	CaptureAdmission(int maxCaptures, int maxCapturesPerRealm, boolean queue){
+		this.maxCaptures = Math.max(0, maxCaptures);
+		this.maxCapturesPerRealm = Math.max(0, maxCapturesPerRealm);
+		this.queue = queue;
+	}
+
+
+	/**
+	 * Checks whether another capture can start for a realm.
+	 * @param realm the capturing realm
+	 * @return true if neither limit has been reached
+	 */
+	private boolean hasRoom(Realm realm){
+		if(maxCaptures>0 && captures>=maxCaptures) return false;
+		return maxCapturesPerRealm==0 || realmCaptures.getOrDefault(realm.getIdentifier(), 0)<maxCapturesPerRealm;
+	}
+
+	/**
+	 * Takes a capture slot for a realm, if one is free.
+	 * @param realm the capturing realm
+	 * @return true if the capture can start
+	 */
+	boolean tryAcquire(Realm realm){
+		if(!hasRoom(realm)) return false;
+		acquire(realm);
+		return true;
+	}
+	/**
+	 * Takes a capture slot for a realm, even if the limits have been reached.
+	 * Used for captures resumed after a restart, which were already admitted.
+	 * @param realm the capturing realm
+	 */
+	void acquire(Realm realm){
+		captures++;
+		realmCaptures.merge(realm.getIdentifier(), 1, Integer::sum);
+	}
+	/**
+	 * Frees a realm's capture slot when a capture ends, and starts the next queued capture on the next tick.
+	 * @param realm the capturing realm
+	 */
+	void release(Realm realm){
+		captures = Math.max(0, captures-1);
+		realmCaptures.computeIfPresent(realm.getIdentifier(), (key, count) -> count>1 ? count-1 : null);
+
+		if(queued.isEmpty() || admitPending) return;
+		admitPending = true;
+		Bukkit.getScheduler().runTask(CTWPlugin.getPlugin(), () -> {
+			admitPending = false;
+			admitQueued();
+		});
+	}
+
+
+	/**
+	 * Handles a capture that could not get a slot, by queueing or rejecting it. The player is told which.
+	 * @param data the Warpstone to capture
+	 * @param player the player starting the capture
+	 * @param realm the capturing realm
+	 */
+	void onLimitReached(WarpstoneCaptureData data, Player player, Realm realm){
+		if(!queue){
+			rejected++;
+			Utils.sendActionBar(player, "Too many warpstones are being captured, try again later!");
+			return;
+		}
+
+		Utils.sendActionBar(player, "Too many warpstones are being captured, you are #"+enqueue(data, player, realm)+" in line to capture this warpstone");
+	}
+
+	/**
+	 * Queues a capture. Queueing the same capture again keeps the player's place in line,
+	 * but queueing for another warpstone or realm goes to the back.
+	 * @param data the Warpstone to capture
+	 * @param player the player starting the capture
+	 * @param realm the capturing realm
+	 * @return the player's place in line, starting from 1
+	 */
+	int enqueue(WarpstoneCaptureData data, Player player, Realm realm){
+		QueuedCapture current = queued.get(player);
+		if(current==null || current.data!=data || !current.realm.equals(realm)){
+			queued.remove(player);
+			queued.put(player, new QueuedCapture(data, player, realm));
+		}
+		return getPosition(player);
+	}
+
+	/**
+	 * Gets a player's place in line, starting from 1.
+	 */
+	private int getPosition(Player player){
+		int position = 1;
+		for(Player queuedPlayer : queued.keySet()){
+			if(queuedPlayer.equals(player)) return position;
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Removes a player's queued capture, when they leave.
+	 * @param player the player
+	 */
+	void forget(Player player){
+		queued.remove(player);
+	}
+
+	/**
+	 * Starts queued captures, in order, while there are free slots. Captures that can no longer start are dropped.
+	 */
+	private void admitQueued(){
+		for(Iterator<QueuedCapture> iterator = queued.values().iterator(); iterator.hasNext();){
+			QueuedCapture capture = iterator.next();
+			if(!capture.data.canStartQueuedCapture(capture.player, capture.realm)){
+				iterator.remove();
+				continue;
+			}
+			if(!hasRoom(capture.realm)){
+				if(maxCaptures>0 && captures>=maxCaptures) return;
+				continue;
+			}
+
+			iterator.remove();
+			acquire(capture.realm);
+			capture.data.startQueuedCapture(capture.player, capture.realm);
+		}
+	}
+
+
+	/**
+	 * Adds info about running and queued captures to a prompt.
+	 * @param prompt the prompt to add to
+	 */
+	void addInfo(Prompt prompt){
+		prompt.addQuestion("- Captures in progress: "+captures+(maxCaptures>0 ? "/"+maxCaptures : "")
+			+(maxCapturesPerRealm>0 ? ", max "+maxCapturesPerRealm+" per realm" : ""));
+		if(!realmCaptures.isEmpty()){
+			String realmList = "- Captures by realm: ";
+			for(Map.Entry<String,Integer> realm : realmCaptures.entrySet()) realmList += realm.getKey()+" "+realm.getValue()+" ";
+			prompt.addQuestion(realmList);
+		}
+		if(queue) prompt.addQuestion("- Captures queued: "+queued.size());
+		else prompt.addQuestion("- Captures rejected by limits: "+rejected);
+	}
+}
@@ -0,0 +1,199 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.warpstones.Warpstone;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Checkpoints the captures in progress in an arena, so they can resume after a restart or crash.
+ * <p>
+ * The checkpoint is a small binary file, separate from the Warpstone save data. It is encoded on the
+ * main thread, which only takes a few bytes per capture, and written to disk by a single writer thread,
+ * so checkpoints always land in the order they were taken.
+ * @author Kyle Nanakdewa
+ */
+final class CaptureCheckpoint {
+
+	/** Identifies a checkpoint file. */
+	private static final int MAGIC = 0x43545743;
+	/** The version of the checkpoint format. Version 1 checkpoints have no reconnect grace time, and can still be read. */
+	private static final byte VERSION = 2;
+	/** The length of a checkpoint with no captures: magic, version and count. */
+	private static final int EMPTY_LENGTH = 9;
+
+	/** The checkpoint file. */
+	private final File file;
+	/** The arena to checkpoint. */
+	private final Arena arena;
+	/** The thread that writes checkpoints to disk, in the order they were taken. */
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "CTW-Checkpoint-Writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** The last checkpoint written, to skip writing when nothing has changed. */
+	private byte[] lastWritten;
+	/** Whether the last checkpoint written had no captures in it. */
+	private boolean lastWrittenEmpty;
+	/** Whether the final checkpoint has been written, after which late writes are dropped. */
+	private boolean closed;
+
+
+	/**
+	 * Creates a checkpoint.
+	 * @param file the checkpoint file
+	 * @param arena the arena to checkpoint
+	 */
+	CaptureCheckpoint(File file, Arena arena){
+		this.file = file;
+		this.arena = arena;
+	}
+
+	/**
+	 * Starts checkpointing captures in progress.
+	 * @param plugin the CTW plugin
+	 * @param interval how often to checkpoint, in ticks
+	 */
+	void start(CTWPlugin plugin, long interval){
+		Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
+			// Nothing can change while the arena is dormant, once its captures have ended
+			if(arena.isDormant() && lastWrittenEmpty) return;
+
+			byte[] checkpoint = encode();
+			if(Arrays.equals(checkpoint, lastWritten)) return;
+			lastWritten = checkpoint;
+			lastWrittenEmpty = checkpoint.length==EMPTY_LENGTH;
+			writer.execute(() -> write(checkpoint));
+		}, interval, interval);
+	}
+
+	/**
+	 * Waits for pending writes to finish, then writes a checkpoint on the current thread, so an older
+	 * checkpoint can't replace it. Used when the plugin is disabled.
+	 */
+	void saveNow(){
+		writer.shutdown();
+		try {
+			if(!writer.awaitTermination(10, TimeUnit.SECONDS)) Bukkit.getLogger().warning("[CTW] Timed out waiting for capture checkpoint writes");
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		byte[] checkpoint = encode();
+		synchronized(this){
+			write(checkpoint);
+			closed = true;
+		}
+	}
+
+	/**
+	 * Encodes the captures in progress.
+	 */
+	private byte[] encode(){
+		List<WarpstoneCaptureData> capturing = new ArrayList<WarpstoneCaptureData>();
+		for(WarpstoneCaptureData data : arena.getAllWarpstoneCaptureData()){
+			if(data.getCappingRealm()!=null) capturing.add(data);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)){
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(capturing.size());
+			for(WarpstoneCaptureData data : capturing){
+				Set<UUID> players = data.getCappingPlayerIds();
+				out.writeUTF(data.getWarpstoneIdentifier());
+				out.writeUTF(data.getCappingRealm().getIdentifier());
+				out.writeDouble(data.getCapTime());
+				out.writeInt(data.getGraceTime());
+				out.writeShort(players.size());
+				for(UUID player : players){
+					out.writeLong(player.getMostSignificantBits());
+					out.writeLong(player.getLeastSignificantBits());
+				}
+			}
+		} catch(IOException e){
+			// Not possible when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a checkpoint to disk. The file is replaced atomically, so a crash mid-write keeps the previous checkpoint.
+	 */
+	private synchronized void write(byte[] checkpoint){
+		if(closed) return;
+		File tempFile = new File(file.getPath()+".tmp");
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(tempFile.toPath(), checkpoint);
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e){
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW] Failed to save capture checkpoint: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Resumes the captures from the last checkpoint.
+	 * Captures that were already waiting for cappers to reconnect keep the grace time they had left, so repeated
+	 * restarts don't extend it.
+	 * @param graceTime the time for cappers to reconnect, in ticks
+	 * @return the number of captures resumed
+	 */
+	int restore(int graceTime){
+		if(!file.exists()) return 0;
+
+		int restored = 0;
+		try(DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))){
+			if(in.readInt()!=MAGIC){
+				Bukkit.getLogger().warning("[CTW] Ignoring capture checkpoint in unknown format");
+				return 0;
+			}
+			byte version = in.readByte();
+			if(version<1 || version>VERSION){
+				Bukkit.getLogger().warning("[CTW] Ignoring capture checkpoint in unknown format");
+				return 0;
+			}
+
+			int count = in.readInt();
+			for(int i=0; i<count; i++){
+				Warpstone warpstone = Warpstone.get(in.readUTF());
+				Realm realm = CTWPlugin.getRealmProvider().getRealm(in.readUTF());
+				double capTime = in.readDouble();
+				int remainingGrace = version>=2 ? in.readInt() : 0;
+				int playerCount = in.readShort();
+				List<UUID> players = new ArrayList<UUID>(playerCount);
+				for(int p=0; p<playerCount; p++) players.add(new UUID(in.readLong(), in.readLong()));
+
+				if(warpstone==null || realm==null) continue;
+				WarpstoneCaptureData data = arena.getWarpstoneCaptureData(warpstone);
+				if(data.isCapturable() && data.restoreCapping(realm, capTime, players, remainingGrace>0 ? remainingGrace : graceTime)) restored++;
+			}
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW] Failed to load capture checkpoint: "+e.getMessage());
+		}
+		return restored;
+	}
+}
@@ -0,0 +1,329 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.warpstones.Warpstone;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Append-only journal of capture events.
+ * <p>
+ * Events are written as fixed-width records into memory-mapped segment files, so recording
+ * an event is a handful of buffer writes on the main thread. Warpstones, realms and players are
+ * stored as ids into a symbol table, which is only written to when a new name is seen.
+ * When a segment is full, a new one is started.
+ * <p>
+ * Record layout (32 bytes): timestamp (long, 0 marks an empty slot), event type (int),
+ * warpstone id (int), realm id (int, -1 for none), player id (int, -1 for none), value (long).
+ * @author Kyle Nanakdewa
+ */
+final class CaptureJournal {
+
+	/** The types of events recorded in the journal. Ordinals are stored on disk, so only add to the end. */
+	enum EventType {
+		/** A realm started capturing a Warpstone. */
+		CAP_START,
+		/** A player joined a capture in progress. */
+		CAPPER_JOIN,
+		/** A player left a capture in progress. */
+		CAPPER_LEAVE,
+		/** Capture time was added because a player left. Value is the added time, in ticks. */
+		PENALTY,
+		/** A capture was stopped before it completed. */
+		CAP_CANCEL,
+		/** A Warpstone was captured by a realm. */
+		OWNERSHIP,
+		/** An admin changed the owner of a Warpstone. */
+		ADMIN_OVERRIDE
+	}
+
+	/** The size of each record, in bytes. */
+	private static final int RECORD_SIZE = 32;
+	/** The number of records in each segment. */
+	private static final int SEGMENT_RECORDS = 32768;
+	/** The number of records read at a time when replaying. */
+	private static final int READ_RECORDS = 2048;
+
+	private static final String SEGMENT_PREFIX = "capture-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String SYMBOL_FILE = "symbols.txt";
+
+	/** The folder holding the journal files. */
+	private final File folder;
+
+	/** The id of each symbol. Keys are Strings or UUIDs, so player ids can be looked up without allocating. */
+	private final Map<Object,Integer> symbolIds = new HashMap<Object,Integer>();
+	/** The name of each symbol, by id. */
+	private final List<String> symbols = new ArrayList<String>();
+	/** The writer for new symbols. */
+	private Writer symbolWriter;
+
+	/** The index of the segment being written to. */
+	private int segmentIndex;
+	/** The segment being written to. Null if the journal is not open. */
+	private MappedByteBuffer segment;
+	/** The next record to write in the current segment. */
+	private int position;
+
+
+	/**
+	 * Creates a journal in a folder. The journal must be opened before events are recorded.
+	 * @param folder the folder to hold the journal files
+	 */
+	CaptureJournal(File folder){
+		this.folder = folder;
+	}
+
+	/**
+	 * Opens the journal, loading symbols and continuing the last segment.
+	 * @throws IOException if the journal files could not be opened
+	 */
+	void open() throws IOException {
+		if(!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create "+folder);
+
+		// Load symbols
+		File symbolFile = new File(folder, SYMBOL_FILE);
+		if(symbolFile.exists()){
+			try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(symbolFile), StandardCharsets.UTF_8))){
+				String line;
+				while((line = reader.readLine())!=null){
+					if(line.length()<2) continue;
+					String name = line.substring(2);
+					Object key = line.charAt(0)=='U' ? UUID.fromString(name) : name;
+					symbolIds.put(key, symbols.size());
+					symbols.add(name);
+				}
+			}
+		}
+		symbolWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(symbolFile, true), StandardCharsets.UTF_8));
+
+		// Continue the last segment
+		segmentIndex = Math.max(countSegments()-1, 0);
+		segment = mapSegment(segmentIndex);
+		position = findEnd(segment);
+		if(position==SEGMENT_RECORDS) rollSegment();
+	}
+
+	/**
+	 * Records an event.
+	 * @param type the type of event
+	 * @param warpstone the Warpstone involved
+	 * @param realm the realm involved, or null for none
+	 * @param player the player involved, or null for none
+	 * @param value an extra value for the event, or 0
+	 */
+	void record(EventType type, Warpstone warpstone, Realm realm, UUID player, long value){
+		record(type, warpstone.getIdentifier(), realm, player, value);
+	}
+	/**
+	 * Records an event.
+	 * @param type the type of event
+	 * @param warpstone the identifier of the Warpstone involved
+	 * @param realm the realm involved, or null for none
+	 * @param player the player involved, or null for none
+	 * @param value an extra value for the event, or 0
+	 */
+	void record(EventType type, String warpstone, Realm realm, UUID player, long value){
+		if(segment==null) return;
+
+		try {
+			int base = position*RECORD_SIZE;
+			segment.putInt(base+8, type.ordinal());
+			segment.putInt(base+12, getSymbol(warpstone));
+			segment.putInt(base+16, realm!=null ? getSymbol(realm.getIdentifier()) : -1);
+			segment.putInt(base+20, player!=null ? getSymbol(player) : -1);
+			segment.putLong(base+24, value);
+			// Timestamp last, so a partial record is never seen as written
+			segment.putLong(base, System.currentTimeMillis());
+
+			if(++position==SEGMENT_RECORDS) rollSegment();
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Journal] Failed to write to capture journal, disabling it: "+e.getMessage());
+			segment = null;
+		}
+	}
+	/**
+	 * Records an event, with no extra value.
+	 * @param type the type of event
+	 * @param warpstone the Warpstone involved
+	 * @param realm the realm involved, or null for none
+	 * @param player the player involved, or null for none
+	 */
+	void record(EventType type, Warpstone warpstone, Realm realm, UUID player){
+		record(type, warpstone, realm, player, 0);
+	}
+
+	/**
+	 * Flushes and closes the journal.
+	 */
+	void close(){
+		if(segment!=null) segment.force();
+		segment = null;
+		try {
+			if(symbolWriter!=null) symbolWriter.close();
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Journal] Failed to close symbol file: "+e.getMessage());
+		}
+		symbolWriter = null;
+	}
+
+	/**
+	 * Whether the journal is open and recording.
+	 * @return true if events are being recorded
+	 */
+	boolean isOpen(){
+		return segment!=null;
+	}
+
+
+	/**
+	 * Gets the id for a symbol, adding it to the symbol table if it's new.
+	 */
+	private int getSymbol(Object key) throws IOException {
+		Integer id = symbolIds.get(key);
+		if(id!=null) return id;
+
+		String name = key.toString();
+		symbolWriter.write((key instanceof UUID ? "U:" : "S:")+name+"\n");
+		// Flush now, so records on disk never reference a missing symbol
+		symbolWriter.flush();
+		id = symbols.size();
+		symbolIds.put(key, id);
+		symbols.add(name);
+		return id;
+	}
+
+	/**
+	 * Finishes the current segment and starts a new one.
+	 */
+	private void rollSegment() throws IOException {
+		segment.force();
+		segmentIndex++;
+		segment = mapSegment(segmentIndex);
+		position = 0;
+	}
+
+	private File getSegmentFile(int index){
+		return new File(folder, SEGMENT_PREFIX+String.format("%06d", index)+SEGMENT_SUFFIX);
+	}
+
+	private int countSegments(){
+		int count = 0;
+		while(getSegmentFile(count).exists()) count++;
+		return count;
+	}
+
+	private MappedByteBuffer mapSegment(int index) throws IOException {
+		// The mapping stays valid after the file is closed
+		try(RandomAccessFile file = new RandomAccessFile(getSegmentFile(index), "rw")){
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)SEGMENT_RECORDS*RECORD_SIZE);
+		}
+	}
+
+	/**
+	 * Finds the first empty record in a segment. Records are written in order, so this is a binary search.
+	 */
+	private static int findEnd(ByteBuffer segment){
+		int low = 0;
+		int high = Math.min(segment.capacity()/RECORD_SIZE, SEGMENT_RECORDS);
+		while(low<high){
+			int middle = (low+high)>>>1;
+			if(segment.getLong(middle*RECORD_SIZE)!=0) low = middle+1;
+			else high = middle;
+		}
+		return low;
+	}
+
+
+	/**
+	 * Takes a snapshot of the journal, which can be replayed on another thread.
+	 * Only events recorded before the snapshot will be replayed.
+	 * @return a replay of the journal
+	 */
+	Replay snapshot(){
+		return new Replay(new ArrayList<String>(symbols), segmentIndex, segment!=null ? position : SEGMENT_RECORDS);
+	}
+
+	/**
+	 * A snapshot of the journal, for rebuilding Warpstone ownership at a point in time.
+	 */
+	final class Replay {
+		private final List<String> symbols;
+		private final int lastSegment;
+		private final int lastPosition;
+
+		private Replay(List<String> symbols, int lastSegment, int lastPosition){
+			this.symbols = symbols;
+			this.lastSegment = lastSegment;
+			this.lastPosition = lastPosition;
+		}
+
+		/**
+		 * Rebuilds the owner of each Warpstone at a point in time, from captures and admin overrides.
+		 * Segments are read in blocks with positional reads, so replaying doesn't map any files.
+		 * @param time the time to rebuild ownership at, in epoch milliseconds
+		 * @return the owning realm identifier of each Warpstone, by Warpstone identifier, with null for neutral Warpstones
+		 * @throws IOException if the journal files could not be read
+		 */
+		Map<String,String> getOwnership(long time) throws IOException {
+			Map<String,String> owners = new TreeMap<String,String>();
+			ByteBuffer records = ByteBuffer.allocate(READ_RECORDS*RECORD_SIZE);
+			for(int index = 0; index<=lastSegment; index++){
+				if(!getSegmentFile(index).exists()) continue;
+				try(FileChannel channel = FileChannel.open(getSegmentFile(index).toPath(), StandardOpenOption.READ)){
+					long end = (index==lastSegment ? lastPosition : SEGMENT_RECORDS)*(long)RECORD_SIZE;
+					end = Math.min(end, channel.size());
+
+					for(long offset = 0; offset<end; offset += records.capacity()){
+						records.clear();
+						records.limit((int)Math.min(records.capacity(), end-offset));
+						while(records.hasRemaining() && channel.read(records, offset+records.position())>=0);
+						int count = records.position()/RECORD_SIZE;
+
+						for(int record = 0; record<count; record++){
+							int base = record*RECORD_SIZE;
+							long timestamp = records.getLong(base);
+							// An empty slot is the end of the segment
+							if(timestamp==0) break;
+							if(timestamp>time) return owners;
+
+							int type = records.getInt(base+8);
+							if(type!=EventType.OWNERSHIP.ordinal() && type!=EventType.ADMIN_OVERRIDE.ordinal()) continue;
+
+							String warpstone = getName(records.getInt(base+12));
+							if(warpstone!=null) owners.put(warpstone, getName(records.getInt(base+16)));
+						}
+						if(count<READ_RECORDS || records.getLong((count-1)*RECORD_SIZE)==0) break;
+					}
+				}
+			}
+			return owners;
+		}
+
+		private String getName(int id){
+			return id>=0 && id<symbols.size() ? symbols.get(id) : null;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An immutable, versioned change to a Warpstone, replicated between cluster nodes.
+ * <p>
+ * The latest delta for each Warpstone is also kept as its current replicated value,
+ * so a full-state resync is just every latest delta.
+ * @author Kyle Nanakdewa
+ */
+final class ClusterDelta {
+
+	/** The kinds of replicated values. Ordinals are sent over the network, so only add to the end. */
+	enum Kind {
+		/** The realm that owns a Warpstone. */
+		OWNERSHIP,
+		/** The realm capturing a Warpstone, or none if the capture stopped. */
+		CAPTURE
+	}
+
+	/** The kind of value changed. */
+	final Kind kind;
+	/** The name of the arena the Warpstone is in. */
+	final String arena;
+	/** The identifier of the Warpstone. */
+	final String warpstone;
+	/** The identifier of the realm, or null for none. */
+	final String realm;
+	/** When the change was made, in epoch milliseconds. Breaks ties between concurrent changes. */
+	final long timestamp;
+	/** The node that made the change. */
+	final String node;
+	/** The version of the value after the change. */
+	final VersionVector version;
+
+	ClusterDelta(Kind kind, String arena, String warpstone, String realm, long timestamp, String node, VersionVector version){
+		this.kind = kind;
+		this.arena = arena;
+		this.warpstone = warpstone;
+		this.realm = realm;
+		this.timestamp = timestamp;
+		this.node = node;
+		this.version = version;
+	}
+
+	/**
+	 * Gets the key identifying the value this delta changes.
+	 * @return the key, unique per kind, arena and Warpstone
+	 */
+	String getKey(){
+		return getKey(kind, arena, warpstone);
+	}
+	/**
+	 * Gets the key identifying a replicated value.
+	 * @param kind the kind of value
+	 * @param arena the name of the arena
+	 * @param warpstone the identifier of the Warpstone
+	 * @return the key, unique per kind, arena and Warpstone
+	 */
+	static String getKey(Kind kind, String arena, String warpstone){
+		return kind.ordinal()+"/"+arena+"/"+warpstone;
+	}
+
+	/**
+	 * Gets a copy of this delta with a different version.
+	 * @param version the new version
+	 * @return the copy
+	 */
+	ClusterDelta withVersion(VersionVector version){
+		return new ClusterDelta(kind, arena, warpstone, realm, timestamp, node, version);
+	}
+
+	/**
+	 * Checks if this delta should win over a concurrent delta. The last writer wins, with ties broken by node.
+	 * @param other the concurrent delta
+	 * @return true if this delta wins
+	 */
+	boolean winsAgainst(ClusterDelta other){
+		if(timestamp!=other.timestamp) return timestamp>other.timestamp;
+		return node.compareTo(other.node)>0;
+	}
+
+
+	/**
+	 * Writes this delta to a stream.
+	 * @param out the stream to write to
+	 * @throws IOException if the delta could not be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeByte(kind.ordinal());
+		out.writeUTF(arena);
+		out.writeUTF(warpstone);
+		out.writeUTF(realm!=null ? realm : "");
+		out.writeLong(timestamp);
+		out.writeUTF(node);
+		version.write(out);
+	}
+	/**
+	 * Reads a delta from a stream.
+	 * @param in the stream to read from
+	 * @return the delta
+	 * @throws IOException if the delta could not be read
+	 */
+	static ClusterDelta read(DataInputStream in) throws IOException {
+		int kind = in.readByte();
+		if(kind<0 || kind>=Kind.values().length) throw new IOException("Unknown delta kind "+kind);
+		String arena = in.readUTF();
+		String warpstone = in.readUTF();
+		String realm = in.readUTF();
+		long timestamp = in.readLong();
+		String node = in.readUTF();
+		VersionVector version = VersionVector.read(in);
+		return new ClusterDelta(Kind.values()[kind], arena, warpstone, realm.isEmpty() ? null : realm, timestamp, node, version);
+	}
+}
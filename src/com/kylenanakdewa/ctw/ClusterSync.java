@@ -0,0 +1,341 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.ctw.ClusterDelta.Kind;
+import com.kylenanakdewa.warpstones.Warpstone;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Replicates Warpstone ownership and captures between CTW servers running the same arenas.
+ * <p>
+ * Each change is sent to peers as a small versioned delta. Conflicting changes are resolved with
+ * version vectors: a change that happened after another replaces it, and concurrent changes are
+ * resolved by last writer wins. The full state is only sent when a peer connects.
+ * <p>
+ * Each server numbers its changes with a counter that is saved to disk, so changes made after a restart
+ * always come after the ones made before it. Replicated values are only kept in memory, so servers are
+ * expected to start from the same Warpstone save data.
+ * <p>
+ * A capture on another server only locks a Warpstone while that server is connected. If it disconnects,
+ * its captures are released, as they can't complete without it.
+ * @author Kyle Nanakdewa
+ */
+final class ClusterSync implements ClusterTransport.Listener {
+
+	/** A message with one delta. */
+	private static final byte MESSAGE_DELTA = 1;
+	/** A message with the full state. */
+	private static final byte MESSAGE_FULL_STATE = 2;
+	/** How many change counters to reserve on disk at a time. */
+	private static final long COUNTER_BLOCK = 1000;
+
+	/** The CTW plugin. */
+	private final CTWPlugin plugin;
+	/** The unique name of this server in the cluster. */
+	private final String nodeId;
+	/** The transport to peers, or null if cluster mode is disabled. */
+	private final ClusterTransport transport;
+
+	/** The file this server's change counter is saved to. */
+	private final File counterFile;
+
+	/** The latest delta for each replicated value, by key. Guarded by this. */
+	private final Map<String,ClusterDelta> values = new HashMap<String,ClusterDelta>();
+	/** The number of open connections to each peer, by node id. Guarded by this. */
+	private final Map<String,Integer> connectedNodes = new HashMap<String,Integer>();
+	/** The counter of the last change this server made. Guarded by this. */
+	private long counter;
+	/** The highest counter saved to disk, which can be used without saving again. Guarded by this. */
+	private long reservedCounter;
+
+
+	/**
+	 * Creates a cluster sync.
+	 * @param plugin the CTW plugin
+	 * @param nodeId the unique name of this server in the cluster
+	 * @param transport the transport to peers, or null to disable cluster mode
+	 */
+	ClusterSync(CTWPlugin plugin, String nodeId, ClusterTransport transport){
+		this(plugin, nodeId, transport, new File(plugin.getDataFolder(), "cluster-counter.dat"));
+	}
+	/**
+	 * Creates a cluster sync, saving its change counter to a specific file.
+	 * @param plugin the CTW plugin
+	 * @param nodeId the unique name of this server in the cluster
+	 * @param transport the transport to peers, or null to disable cluster mode
+	 * @param counterFile the file to save this server's change counter to
+	 */
+	ClusterSync(CTWPlugin plugin, String nodeId, ClusterTransport transport, File counterFile){
+		this.plugin = plugin;
+		this.nodeId = nodeId;
+		this.transport = transport;
+		this.counterFile = counterFile;
+	}
+
+	/**
+	 * Starts replicating, if cluster mode is enabled.
+	 */
+	void start(){
+		if(transport==null) return;
+		loadCounter();
+		try {
+			transport.start(nodeId, this);
+			plugin.getLogger().info("Cluster mode enabled as node "+nodeId+" - "+transport.getDescription());
+		} catch(IOException e){
+			plugin.getLogger().warning("Failed to start cluster transport, changes will not be replicated: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops replicating.
+	 */
+	void stop(){
+		if(transport!=null) transport.close();
+	}
+
+	/**
+	 * Whether cluster mode is enabled.
+	 * @return true if changes are replicated to peers
+	 */
+	boolean isEnabled(){
+		return transport!=null;
+	}
+
+
+	/**
+	 * Replicates a change of owner made on this server.
+	 * @param data the Warpstone whose owner changed
+	 */
+	void publishOwnership(WarpstoneCaptureData data){
+		publish(Kind.OWNERSHIP, data, data.getRealm());
+	}
+	/**
+	 * Replicates a capture starting or stopping on this server.
+	 * @param data the Warpstone being captured
+	 * @param cappingRealm the realm capturing, or null if the capture stopped
+	 */
+	void publishCapture(WarpstoneCaptureData data, Realm cappingRealm){
+		publish(Kind.CAPTURE, data, cappingRealm);
+	}
+
+	private void publish(Kind kind, WarpstoneCaptureData data, Realm realm){
+		if(transport==null) return;
+
+		ClusterDelta delta;
+		synchronized(this){
+			ClusterDelta current = values.get(ClusterDelta.getKey(kind, data.getArena().getName(), data.getWarpstoneIdentifier()));
+			VersionVector version = (current!=null ? current.version : VersionVector.EMPTY).withChange(nodeId, nextCounter());
+			delta = new ClusterDelta(kind, data.getArena().getName(), data.getWarpstoneIdentifier(), realm!=null ? realm.getIdentifier() : null, System.currentTimeMillis(), nodeId, version);
+			values.put(delta.getKey(), delta);
+		}
+		transport.broadcast(encode(MESSAGE_DELTA, Collections.singletonList(delta)));
+	}
+
+
+	/**
+	 * Gets the counter for a new change made by this server, reserving more on disk when needed.
+	 */
+	synchronized long nextCounter(){
+		if(counter>=reservedCounter){
+			reservedCounter = counter+COUNTER_BLOCK;
+			try {
+				Files.createDirectories(counterFile.getParentFile().toPath());
+				try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(counterFile.toPath()))){
+					out.writeLong(reservedCounter);
+				}
+			} catch(IOException e){
+				Bukkit.getLogger().warning("[CTW Cluster] Failed to save change counter, changes after a restart may be ignored by peers: "+e.getMessage());
+			}
+		}
+		return ++counter;
+	}
+
+	/**
+	 * Loads the change counter. Any counter up to the saved one may have been used before the restart.
+	 */
+	synchronized void loadCounter(){
+		if(!counterFile.exists()) return;
+		try(DataInputStream in = new DataInputStream(Files.newInputStream(counterFile.toPath()))){
+			counter = Math.max(counter, in.readLong());
+			reservedCounter = counter;
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Cluster] Failed to load change counter: "+e.getMessage());
+		}
+	}
+
+
+	@Override
+	public byte[] onPeerConnected(String node){
+		List<ClusterDelta> state;
+		boolean firstConnection;
+		synchronized(this){
+			firstConnection = connectedNodes.merge(node, 1, Integer::sum)==1;
+			state = new ArrayList<ClusterDelta>(values.values());
+		}
+		// Captures this peer made before are held by it again
+		if(firstConnection) runOnMainThread(() -> reapplyCaptures(node));
+		return encode(MESSAGE_FULL_STATE, state);
+	}
+
+	@Override
+	public void onPeerDisconnected(String node){
+		boolean lastConnection;
+		synchronized(this){
+			lastConnection = connectedNodes.computeIfPresent(node, (key, count) -> count>1 ? count-1 : null)==null;
+		}
+		// The peer's captures can't complete without it, so release them
+		if(lastConnection) runOnMainThread(() -> reapplyCaptures(node));
+	}
+
+	private synchronized boolean isConnected(String node){
+		return connectedNodes.containsKey(node);
+	}
+
+	@Override
+	public void onMessage(String node, byte[] message){
+		List<ClusterDelta> deltas = new ArrayList<ClusterDelta>();
+		try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(message))){
+			byte type = in.readByte();
+			int count = type==MESSAGE_FULL_STATE ? in.readInt() : 1;
+			for(int i=0; i<count; i++) deltas.add(ClusterDelta.read(in));
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Cluster] Ignoring invalid message: "+e.getMessage());
+			return;
+		}
+
+		List<String> changed = new ArrayList<String>();
+		for(ClusterDelta delta : deltas){
+			if(merge(delta)) changed.add(delta.getKey());
+		}
+		if(!changed.isEmpty()) runOnMainThread(() -> changed.forEach(key -> apply(key)));
+	}
+
+	private void runOnMainThread(Runnable task){
+		// Nothing more can be applied once the plugin is disabled
+		if(plugin.isEnabled()) Bukkit.getScheduler().runTask(plugin, task);
+	}
+
+	/**
+	 * Merges a delta from a peer into the replicated values.
+	 * Deltas this node made are merged too, so that after a restart it knows its own earlier changes,
+	 * and its counter never falls behind them, even if the saved counter was lost.
+	 * @return true if the delta replaced the current value
+	 */
+	synchronized boolean merge(ClusterDelta incoming){
+		counter = Math.max(counter, incoming.version.get(nodeId));
+		ClusterDelta current = values.get(incoming.getKey());
+		if(current==null){
+			values.put(incoming.getKey(), incoming);
+			return true;
+		}
+
+		switch(incoming.version.compareTo(current.version)){
+			case AFTER:
+				values.put(incoming.getKey(), incoming);
+				return true;
+			case CONCURRENT:
+				// Both sides keep the merged version, so the winner is agreed everywhere
+				VersionVector merged = incoming.version.merge(current.version);
+				if(incoming.winsAgainst(current)){
+					values.put(incoming.getKey(), incoming.withVersion(merged));
+					return true;
+				}
+				values.put(current.getKey(), current.withVersion(merged));
+				return false;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Applies the current captures made by a peer again, after it connects or disconnects.
+	 */
+	private void reapplyCaptures(String node){
+		List<String> keys = new ArrayList<String>();
+		synchronized(this){
+			for(ClusterDelta delta : values.values()){
+				if(delta.kind==Kind.CAPTURE && delta.node.equals(node)) keys.add(delta.getKey());
+			}
+		}
+		keys.forEach(key -> apply(key));
+	}
+
+	/**
+	 * Applies the current replicated value to the game, on the main thread.
+	 * The value is read again here, in case a newer change was made since it was merged.
+	 */
+	private void apply(String key){
+		ClusterDelta delta;
+		synchronized(this){
+			delta = values.get(key);
+		}
+		if(delta==null) return;
+
+		Arena arena = CTWPlugin.getArena(delta.arena);
+		Warpstone warpstone = Warpstone.get(delta.warpstone);
+		if(arena==null || !arena.isActive() || warpstone==null) return;
+		WarpstoneCaptureData data = arena.getWarpstoneCaptureData(warpstone);
+		Realm realm = delta.realm!=null ? CTWPlugin.getRealmProvider().getRealm(delta.realm) : null;
+
+		if(delta.node.equals(nodeId)){
+			// Peers may still have a capture this server made before a restart, which it no longer has
+			Realm cappingRealm = data.getCappingRealm();
+			String cappingRealmId = cappingRealm!=null ? cappingRealm.getIdentifier() : null;
+			if(delta.kind==Kind.CAPTURE && (delta.realm==null ? cappingRealmId!=null : !delta.realm.equals(cappingRealmId))) publishCapture(data, cappingRealm);
+			return;
+		}
+
+		if(delta.kind==Kind.OWNERSHIP){
+			data.setRealmFromCluster(realm);
+			return;
+		}
+
+		if(realm==null || !isConnected(delta.node)){
+			data.setRemoteCappingRealm(null);
+			return;
+		}
+		// The capture on the other server won, so the one here is cancelled, freeing its admission slot.
+		// Publishing that it ended would replace the winning capture on every server, so it isn't published.
+		if(data.getCappingRealm()!=null) data.cancelCapping(false);
+		data.setRemoteCappingRealm(realm);
+	}
+
+
+	private static byte[] encode(byte type, Collection<ClusterDelta> deltas){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)){
+			out.writeByte(type);
+			if(type==MESSAGE_FULL_STATE) out.writeInt(deltas.size());
+			for(ClusterDelta delta : deltas) delta.write(out);
+		} catch(IOException e){
+			// Not possible when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * Gets a short description of the cluster state, for info prompts.
+	 * @return the description
+	 */
+	String getDescription(){
+		if(transport==null) return "disabled";
+		return "node "+nodeId+", "+transport.getPeerCount()+" peers connected ("+transport.getDescription()+")";
+	}
+}
@@ -0,0 +1,71 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.IOException;
+
+/**
+ * Carries cluster messages between CTW servers.
+ * <p>
+ * Implementations deliver messages on their own threads, and must never block the caller of {@link #broadcast(byte[])}.
+ * @author Kyle Nanakdewa
+ * @see TcpTransport
+ * @see LoopbackTransport
+ */
+interface ClusterTransport {
+
+	/**
+	 * Receives messages and connections from a transport.
+	 * Peers are identified by their node id. A peer may be connected more than once at a time.
+	 */
+	interface Listener {
+		/**
+		 * Called when a peer connects, before any of its messages are received.
+		 * @param node the node id of the peer
+		 * @return the message to send to the new peer first, normally the full state
+		 */
+		byte[] onPeerConnected(String node);
+
+		/**
+		 * Called when a connection to a peer closes.
+		 * @param node the node id of the peer
+		 */
+		void onPeerDisconnected(String node);
+
+		/**
+		 * Called when a message is received from a peer.
+		 * @param node the node id of the peer
+		 * @param message the message
+		 */
+		void onMessage(String node, byte[] message);
+	}
+
+	/**
+	 * Starts the transport, connecting to peers.
+	 * @param nodeId the node id of this server, sent to peers
+	 * @param listener the listener for messages and connections
+	 * @throws IOException if the transport could not be started
+	 */
+	void start(String nodeId, Listener listener) throws IOException;
+
+	/**
+	 * Sends a message to all connected peers.
+	 * @param message the message
+	 */
+	void broadcast(byte[] message);
+
+	/**
+	 * Stops the transport, disconnecting from peers.
+	 */
+	void close();
+
+	/**
+	 * Gets the number of peers currently connected.
+	 * @return the number of connected peers
+	 */
+	int getPeerCount();
+
+	/**
+	 * Gets a short description of this transport, for info prompts.
+	 * @return the description
+	 */
+	String getDescription();
+}
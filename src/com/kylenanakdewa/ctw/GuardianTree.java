@@ -20,18 +20,16 @@ import org.bukkit.potion.PotionEffectType;
  */
 public class GuardianTree {
 
-    /** The Guardian Trees on this server. */
-    private static Set<GuardianTree> trees;
-
     /**
-     * Sets up the Guardian Trees system. Should only be called once at plugin startup.
+     * Loads the Guardian Trees for an arena from a file.
+     * @param arena the arena the trees are in
+     * @param plugin the CTW plugin
+     * @param fileName the name of the file to load trees from
+     * @return the trees in the file
      */
-    public static void enableGuardianTrees(CTWPlugin plugin){
-        if(trees!=null) return;
-
-        // Load trees from file
-        trees = new HashSet<GuardianTree>();
-        ConfigurationSection file = new ConfigAccessor("trees.yml", plugin).getConfig();
+    static Set<GuardianTree> loadTrees(Arena arena, CTWPlugin plugin, String fileName){
+        Set<GuardianTree> trees = new HashSet<GuardianTree>();
+        ConfigurationSection file = new ConfigAccessor(fileName, plugin).getConfig();
         for(String treeName : file.getKeys(false)){
             PotionEffectType effectType = PotionEffectType.getByName(file.getString(treeName+".effect.type").toUpperCase());
             if(effectType==null){
@@ -39,56 +37,42 @@ public class GuardianTree {
                 effectType = PotionEffectType.INCREASE_DAMAGE;
             }
             PotionEffect effect = new PotionEffect(effectType, 100, file.getInt(treeName+".effect.level"));
+            // A tree can only use Warpstones in its own arena, so its controller is always decided by this arena's data
             Set<Warpstone> warpstones = new HashSet<Warpstone>();
-            file.getStringList(treeName+".warpstones").forEach(wsName -> warpstones.add(Warpstone.get(wsName)));
-            trees.add(new GuardianTree(treeName, effect, warpstones));
+            String invalidStone = null;
+            for(String wsName : file.getStringList(treeName+".warpstones")){
+                Warpstone warpstone = Warpstone.get(wsName);
+                if(warpstone==null || warpstone.getLocation()==null || !arena.contains(warpstone.getLocation().getWorld())){
+                    invalidStone = wsName;
+                    break;
+                }
+                warpstones.add(warpstone);
+            }
+            if(invalidStone!=null){
+                Bukkit.getLogger().warning("[CTW Guardian Trees] Skipping tree "+treeName+" - Warpstone "+invalidStone+" does not exist or is not in arena "+arena.getName());
+                continue;
+            }
+            trees.add(new GuardianTree(treeName, arena, effect, warpstones));
             Bukkit.getLogger().info("[CTW Guardian Trees] Added tree "+treeName+" - "+warpstones.size()+" stones - "+effectType.getName()+" effect");
         }
 
-        Bukkit.getLogger().info("[CTW Guardian Trees] Found "+trees.size()+" trees");
-
-        // Schedule task
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, ()->grantAllPowers(), 20, 60);
-    }
-
-    /**
-     * Grants powers for Guardian Trees as needed.
-     */
-    private static void grantAllPowers(){
-        // Performance boost: skip if the world is empty
-        if(CTWPlugin.getCTWWorld()!=null && CTWPlugin.getCTWWorld().getPlayers().isEmpty()) return;
-
-        trees.forEach(tree -> tree.grantPowers());
-    }
-
-    /**
-     * Gets a set of Guardian Trees.
-     * @return the set of trees on this server
-     */
-    public static Set<GuardianTree> getTrees(){
+        Bukkit.getLogger().info("[CTW Guardian Trees] Found "+trees.size()+" trees in arena "+arena.getName());
         return trees;
     }
 
-    /**
-     * Gets a specific Guardian Tree by name.
-     * @param treeName the name of the tree to get
-     * @return the tree, or null if it does not exist
-     */
-    public static GuardianTree getTree(String treeName){
-        for(GuardianTree tree : trees) if(tree.getName().equalsIgnoreCase(treeName)) return tree;
-        return null;
-    }
-
 
     /** The unique name of the tree. */
     private final String name;
+    /** The arena this tree is in. */
+    private final Arena arena;
     /** The potion effect to grant to players who own this tree. */
     private final PotionEffect effect;
     /** The Warpstones that must be owned to own this tree. */
     private final Set<Warpstone> warpstones;
 
-    private GuardianTree(String name, PotionEffect effect, Set<Warpstone> warpstones){
+    private GuardianTree(String name, Arena arena, PotionEffect effect, Set<Warpstone> warpstones){
         this.name = name;
+        this.arena = arena;
         this.effect = effect;
         this.warpstones = warpstones;
     }
@@ -100,30 +84,24 @@ public class GuardianTree {
     public Realm getControllingRealm(){
         Realm realm = null;
         for(Warpstone warpstone : warpstones){
-            WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(warpstone);
-            if(data!=null && (data.getRealm()==null || (realm!=null && !data.getRealm().equals(realm)))) return null;
+            WarpstoneCaptureData data = arena.getWarpstoneCaptureData(warpstone);
+            if(data.getRealm()==null || (realm!=null && !data.getRealm().equals(realm))) return null;
             if(realm==null) realm = data.getRealm();
         }
         return realm;
     }
 
     /**
-     * Grants powers to realm members if the tree is controlled.
+     * Queues realm members to be granted powers, if the tree is controlled.
+     * Players outside the arena are skipped when the queue reaches them.
+     * @param queue the queue to add players to
      */
-    private void grantPowers(){
+    void queuePowers(TreePowerQueue queue){
         Realm realm = getControllingRealm();
         if(realm!=null){
-            for(Player player : realm.getOnlinePlayers()){
-                if(CTWPlugin.getCTWWorld()==null || player.getLocation().getWorld().equals(CTWPlugin.getCTWWorld())){
-                    player.addPotionEffect(effect, true);
-                }
-            }
+            for(Player player : realm.getOnlinePlayers()) queue.add(player, effect);
             for(Realm childRealm : realm.getChildRealms()){
-                for(Player player : childRealm.getOnlinePlayers()){
-                    if(CTWPlugin.getCTWWorld()==null || player.getLocation().getWorld().equals(CTWPlugin.getCTWWorld())){
-                        player.addPotionEffect(effect, true);
-                    }
-                }
+                for(Player player : childRealm.getOnlinePlayers()) queue.add(player, effect);
             }
         }
     }
@@ -135,6 +113,13 @@ public class GuardianTree {
     public String getName(){
         return name;
     }
+    /**
+     * Gets the arena this tree is in.
+     * @return the arena
+     */
+    public Arena getArena(){
+        return arena;
+    }
     /**
      * Gets the potion effect that is granted to players who own this tree.
      * @return the potion effect
@@ -162,7 +147,7 @@ public class GuardianTree {
         if(owningRealm!=null) prompt.addQuestion("Active for "+owningRealm.getColor()+owningRealm.getIdentifier());
         prompt.addQuestion("&8-- &9Warpstones &8--");
         for(Warpstone warpstone : warpstones){
-            Realm realm = CTWPlugin.getWarpstoneCaptureData(warpstone).getRealm();
+            Realm realm = arena.getWarpstoneCaptureData(warpstone).getRealm();
             String realmString = realm!=null ? " - Owned by "+realm.getColor()+realm.getIdentifier() : "";
             prompt.addAnswer(warpstone.getDisplayName()+" ("+warpstone.getIdentifier()+")"+realmString, "command_ctw info "+warpstone.getIdentifier());
         }
@@ -0,0 +1,88 @@
+package com.kylenanakdewa.ctw;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A cluster transport within a single JVM.
+ * <p>
+ * Every loopback transport on the same channel is connected to every other. Messages are delivered
+ * on a shared background thread, in the order they were sent. Useful for testing cluster mode locally.
+ * @author Kyle Nanakdewa
+ */
+final class LoopbackTransport implements ClusterTransport {
+
+	/** The transports on each channel. */
+	private static final Map<String,Set<LoopbackTransport>> channels = new ConcurrentHashMap<String,Set<LoopbackTransport>>();
+	/** The thread that delivers messages. */
+	private static final ExecutorService delivery = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "CTW-Cluster-Loopback");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** The channel this transport is on. */
+	private final String channel;
+	/** The node id of this transport's server. Null until started. */
+	private volatile String nodeId;
+	/** The listener for messages. Null until started. */
+	private volatile Listener listener;
+
+	/**
+	 * Creates a loopback transport.
+	 * @param channel the channel to connect to
+	 */
+	LoopbackTransport(String channel){
+		this.channel = channel;
+	}
+
+	@Override
+	public void start(String nodeId, Listener listener){
+		this.nodeId = nodeId;
+		this.listener = listener;
+		Set<LoopbackTransport> members = channels.computeIfAbsent(channel, key -> ConcurrentHashMap.newKeySet());
+		for(LoopbackTransport member : members){
+			// Exchange full state with each existing member
+			delivery.execute(() -> {
+				byte[] memberState = member.listener.onPeerConnected(nodeId);
+				byte[] state = listener.onPeerConnected(member.nodeId);
+				listener.onMessage(member.nodeId, memberState);
+				member.listener.onMessage(nodeId, state);
+			});
+		}
+		members.add(this);
+	}
+
+	@Override
+	public void broadcast(byte[] message){
+		for(LoopbackTransport member : channels.getOrDefault(channel, ConcurrentHashMap.<LoopbackTransport>newKeySet())){
+			Listener memberListener = member.listener;
+			if(member!=this && memberListener!=null) delivery.execute(() -> memberListener.onMessage(nodeId, message));
+		}
+	}
+
+	@Override
+	public void close(){
+		Set<LoopbackTransport> members = channels.get(channel);
+		if(members==null || !members.remove(this)) return;
+		for(LoopbackTransport member : members){
+			Listener memberListener = member.listener;
+			if(memberListener!=null) delivery.execute(() -> memberListener.onPeerDisconnected(nodeId));
+		}
+		listener = null;
+	}
+
+	@Override
+	public int getPeerCount(){
+		Set<LoopbackTransport> members = channels.get(channel);
+		return members!=null && members.contains(this) ? members.size()-1 : 0;
+	}
+
+	@Override
+	public String getDescription(){
+		return "loopback channel "+channel;
+	}
+}
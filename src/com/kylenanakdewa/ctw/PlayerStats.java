@@ -0,0 +1,592 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.kylenanakdewa.core.common.prompts.Prompt;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+/**
+ * Capture statistics for each player: captures started and completed, time spent capturing, and penalties.
+ * <p>
+ * Each player has a fixed-width record in the stats file, at the position of their compact id. An index file maps
+ * each UUID to its id, as an open-addressed hash table on disk, and a small leaders file keeps the top players for
+ * each stat. Only the leaders are loaded when the plugin starts. Other records are read by offset when needed,
+ * on a single writer thread, so the main thread never touches the disk.
+ * <p>
+ * Changes are counted on the main thread, then added to the records in batches on the writer thread, so batches
+ * are always written in order. Counters only ever go up, so the writer keeps the leaders up to date as records
+ * change, and saves them with each batch. The leaders shown are those of the last batch written.
+ * <p>
+ * The index is marked as being written while a batch is applied. If the server stops partway, the index and
+ * leaders are rebuilt from the stats file the next time it starts.
+ * @author Kyle Nanakdewa
+ */
+final class PlayerStats {
+
+	/** The stats kept for each player. Ordinals are the positions in the stats file, so only add to the end. */
+	enum Stat {
+		/** Captures started. */
+		CAPS_STARTED("Captures started"),
+		/** Captures completed, by any player capping when the capture finished. */
+		CAPS_COMPLETED("Captures completed"),
+		/** Time spent capping, in seconds. */
+		CAP_TIME("Time capturing"),
+		/** Times penalized for leaving range while capping. */
+		PENALTIES("Penalties");
+
+		private final String displayName;
+
+		private Stat(String displayName){
+			this.displayName = displayName;
+		}
+
+		/**
+		 * Gets the name of this stat, for display.
+		 * @return the display name
+		 */
+		String getDisplayName(){
+			return displayName;
+		}
+
+		/**
+		 * Formats a value of this stat, for display.
+		 * @param value the value
+		 * @return the formatted value
+		 */
+		String format(long value){
+			if(this!=CAP_TIME) return Long.toString(value);
+			return (value/3600)+"h "+(value/60%60)+"m";
+		}
+	}
+
+	/** The number of stats per player. */
+	private static final int STATS = Stat.values().length;
+	/** The number of leaders kept for each stat. */
+	static final int MAX_TOP = 10;
+
+	/** Identifies a stats file. */
+	private static final int MAGIC = 0x43545753;
+	/** The version of the stats file format. */
+	private static final int VERSION = 1;
+	/** The length of the file header: magic and version. */
+	private static final int HEADER_LENGTH = 8;
+	/** The length of each player's record: UUID, then each stat. */
+	private static final int RECORD_LENGTH = 16+STATS*8;
+
+	/** Identifies a stats index file. */
+	private static final int INDEX_MAGIC = 0x43545749;
+	/** The length of the index header: magic, version, capacity and count. */
+	private static final int INDEX_HEADER_LENGTH = 16;
+	/** The position of the count in the index header. */
+	private static final int INDEX_COUNT_POSITION = 12;
+	/** The length of each index slot: UUID, then id+1, or 0 if the slot is empty. */
+	private static final int SLOT_LENGTH = 20;
+	/** The fewest slots in the index. Always a power of two. */
+	private static final int MIN_INDEX_CAPACITY = 1024;
+	/** Identifies a stats leaders file. */
+	private static final int TOP_MAGIC = 0x43545754;
+
+	/** The stats file. */
+	private final File file;
+	/** The index of each player's id, by UUID. */
+	private final File indexFile;
+	/** The leaders for each stat. */
+	private final File topFile;
+	/** The thread that reads and writes the stats files, in the order tasks were given to it. */
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "CTW-Stats-Writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** The CTW plugin, to return results to the main thread. */
+	private CTWPlugin plugin;
+
+	/** The amount added to each player's stats since the last flush, by UUID. Only used on the main thread. */
+	private Map<UUID,long[]> pending = new HashMap<UUID,long[]>();
+	/** The leaders as of the last batch written. Replaced by the writer thread. */
+	private volatile Leaders leaders = new Leaders(new UUID[STATS*MAX_TOP], new long[STATS*MAX_TOP], new int[STATS]);
+
+	// Only used on the writer thread, after opening
+	/** The number of records in the stats file. */
+	private int recordCount;
+	/** The number of slots in the index, or 0 if it has not been created. */
+	private int indexCapacity;
+	/** The leaders for each stat, highest first, at index stat ordinal*MAX_TOP + rank. */
+	private final UUID[] topPlayers = new UUID[STATS*MAX_TOP];
+	/** The value of each leader's stat, at the same index as the leader. */
+	private final long[] topValues = new long[STATS*MAX_TOP];
+	/** The number of leaders for each stat. */
+	private final int[] topCount = new int[STATS];
+	/** Reused for reading and writing records. */
+	private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_LENGTH);
+	/** Reused for reading and writing index slots. */
+	private final ByteBuffer slotBuffer = ByteBuffer.allocate(SLOT_LENGTH);
+	/** Whether the stats file could not be read, so it must not be overwritten. */
+	private boolean readOnly;
+
+
+	/**
+	 * The leaders for each stat, at one point in time.
+	 */
+	private static final class Leaders {
+		private final UUID[] players;
+		private final long[] values;
+		private final int[] counts;
+
+		private Leaders(UUID[] players, long[] values, int[] counts){
+			this.players = players;
+			this.values = values;
+			this.counts = counts;
+		}
+	}
+
+
+	/**
+	 * Creates the stats store.
+	 * @param file the stats file. The index and leaders files are kept next to it.
+	 */
+	PlayerStats(File file){
+		this.file = file;
+		indexFile = new File(file.getPath()+".idx");
+		topFile = new File(file.getPath()+".top");
+	}
+
+	/**
+	 * Loads the leaders, and starts flushing changes to the stats file.
+	 * @param plugin the CTW plugin
+	 * @param interval how often to flush changes, in ticks
+	 */
+	void start(CTWPlugin plugin, long interval){
+		this.plugin = plugin;
+		open();
+		Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> flush(), interval, interval);
+	}
+
+	/**
+	 * Writes all changes, and waits for every pending write to finish. Used when the plugin is disabled.
+	 */
+	void flushNow(){
+		flush();
+		writer.shutdown();
+		try {
+			if(!writer.awaitTermination(10, TimeUnit.SECONDS)) Bukkit.getLogger().warning("[CTW Stats] Timed out saving player stats, some changes may be lost");
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void flush(){
+		if(pending.isEmpty()) return;
+		Map<UUID,long[]> batch = pending;
+		pending = new HashMap<UUID,long[]>();
+		writer.execute(() -> write(batch));
+	}
+
+
+	/**
+	 * Adds to a player's stat.
+	 * @param player the player
+	 * @param stat the stat to add to
+	 * @param amount the amount to add, at least 0
+	 */
+	void add(Player player, Stat stat, long amount){
+		add(player.getUniqueId(), stat, amount);
+	}
+	/**
+	 * Adds to a player's stat.
+	 * @param player the UUID of the player
+	 * @param stat the stat to add to
+	 * @param amount the amount to add, at least 0
+	 */
+	void add(UUID player, Stat stat, long amount){
+		if(amount<=0) return;
+		pending.computeIfAbsent(player, key -> new long[STATS])[stat.ordinal()] += amount;
+	}
+
+	/**
+	 * Gets the players with the highest value of a stat, as of the last batch written.
+	 * @param stat the stat to rank by
+	 * @param count the number of players to get, up to {@link #MAX_TOP}
+	 * @return the UUIDs of the top players, highest first
+	 */
+	UUID[] getTop(Stat stat, int count){
+		Leaders leaders = this.leaders;
+		return Arrays.copyOfRange(leaders.players, stat.ordinal()*MAX_TOP, stat.ordinal()*MAX_TOP+Math.min(Math.min(count, MAX_TOP), leaders.counts[stat.ordinal()]));
+	}
+
+
+	/**
+	 * Loads the index header and the leaders. If either doesn't match the stats file, they are rebuilt from it.
+	 * Called once, before anything is given to the writer thread.
+	 */
+	void open(){
+		if(!file.exists()) return;
+		try {
+			long length = file.length();
+			try(DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))){
+				if(in.readInt()!=MAGIC || in.readInt()!=VERSION) throw new IOException("Not a CTW stats file");
+			} catch(EOFException e){
+				throw new IOException("Not a CTW stats file");
+			}
+			// An incomplete record at the end is overwritten by the next new player
+			if((length-HEADER_LENGTH)%RECORD_LENGTH!=0) Bukkit.getLogger().warning("[CTW Stats] Stats file ends with an incomplete record, some stats for one player may be lost");
+			recordCount = (int)((length-HEADER_LENGTH)/RECORD_LENGTH);
+
+			if(!loadIndexHeader() || !loadTop()) rebuild();
+			publishLeaders();
+		} catch(IOException e){
+			readOnly = true;
+			Bukkit.getLogger().warning("[CTW Stats] Failed to load player stats, stats will not be saved: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the index header.
+	 * @return true if the index is complete, and has every record in the stats file
+	 */
+	private boolean loadIndexHeader() throws IOException {
+		if(!indexFile.exists()) return false;
+		try(DataInputStream in = new DataInputStream(Files.newInputStream(indexFile.toPath()))){
+			if(in.readInt()!=INDEX_MAGIC || in.readInt()!=VERSION) return false;
+			int capacity = in.readInt();
+			int count = in.readInt();
+			if(capacity<MIN_INDEX_CAPACITY || Integer.bitCount(capacity)!=1 || count!=recordCount) return false;
+			if(indexFile.length()!=INDEX_HEADER_LENGTH+(long)capacity*SLOT_LENGTH) return false;
+			indexCapacity = capacity;
+			return true;
+		} catch(EOFException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the leaders for each stat.
+	 * @return true if the leaders file was read, and was saved with every record in the stats file
+	 */
+	private boolean loadTop() throws IOException {
+		if(!topFile.exists()) return false;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(topFile.toPath())))){
+			if(in.readInt()!=TOP_MAGIC || in.readInt()!=VERSION || in.readInt()!=recordCount) return false;
+			for(int stat=0; stat<STATS; stat++){
+				int count = in.readByte();
+				if(count<0 || count>MAX_TOP) return false;
+				topCount[stat] = count;
+				for(int rank=0; rank<count; rank++){
+					topPlayers[stat*MAX_TOP+rank] = new UUID(in.readLong(), in.readLong());
+					topValues[stat*MAX_TOP+rank] = in.readLong();
+				}
+			}
+			return true;
+		} catch(EOFException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Rebuilds the index and leaders by reading every record in the stats file once.
+	 */
+	private void rebuild() throws IOException {
+		Arrays.fill(topCount, 0);
+		buildIndex(indexCapacityFor(recordCount));
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))){
+			in.skipBytes(HEADER_LENGTH);
+			for(int id=0; id<recordCount; id++){
+				UUID player = new UUID(in.readLong(), in.readLong());
+				for(int stat=0; stat<STATS; stat++) updateTop(player, stat, in.readLong());
+			}
+		}
+		writeTop();
+	}
+
+	/**
+	 * Gets the number of index slots to use for a number of players, keeping the index at most half full.
+	 */
+	private static int indexCapacityFor(int players){
+		return Math.max(MIN_INDEX_CAPACITY, Integer.highestOneBit(Math.max(1, players*2-1))<<1);
+	}
+
+	/**
+	 * Writes a new index of every record in the stats file, replacing the old one.
+	 * @param capacity the number of slots, a power of two
+	 */
+	private void buildIndex(int capacity) throws IOException {
+		ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_LENGTH+capacity*SLOT_LENGTH);
+		index.putInt(INDEX_MAGIC).putInt(VERSION).putInt(capacity).putInt(recordCount);
+		if(recordCount>0){
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))){
+				in.skipBytes(HEADER_LENGTH);
+				for(int id=0; id<recordCount; id++){
+					long most = in.readLong(), least = in.readLong();
+					in.skipBytes(STATS*8);
+					int slot = hash(most, least) & (capacity-1);
+					while(index.getInt(INDEX_HEADER_LENGTH+slot*SLOT_LENGTH+16)!=0) slot = (slot+1) & (capacity-1);
+					index.position(INDEX_HEADER_LENGTH+slot*SLOT_LENGTH);
+					index.putLong(most).putLong(least).putInt(id+1);
+				}
+			}
+		}
+		index.clear();
+		replace(indexFile, index);
+		indexCapacity = capacity;
+	}
+
+	private static int hash(long most, long least){
+		long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash>>>32));
+	}
+
+
+	/**
+	 * Adds a batch of changes to the players' records, and updates the leaders. Only called on the writer thread.
+	 * @param batch the amount to add to each player's stats, by UUID
+	 */
+	void write(Map<UUID,long[]> batch){
+		if(readOnly) return;
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			// Every player in the batch may be new
+			if((long)(recordCount+batch.size())*2>indexCapacity) buildIndex(indexCapacityFor(recordCount+batch.size()));
+
+			try(FileChannel records = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)){
+				if(records.size()<HEADER_LENGTH){
+					ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+					header.putInt(MAGIC).putInt(VERSION).flip();
+					writeFully(records, header, 0);
+				}
+				// Mark the index as being written, so it is rebuilt if the server stops before the batch is done
+				writeCount(index, -1);
+
+				for(Map.Entry<UUID,long[]> change : batch.entrySet()){
+					UUID player = change.getKey();
+					long[] amounts = change.getValue();
+					long slot = findSlot(index, player);
+					int id = slotBuffer.getInt(16)-1;
+					if(id<0){
+						id = recordCount++;
+						slotBuffer.clear();
+						slotBuffer.putLong(player.getMostSignificantBits()).putLong(player.getLeastSignificantBits()).putInt(id+1).flip();
+						writeFully(index, slotBuffer, slot);
+						recordBuffer.clear();
+						recordBuffer.putLong(player.getMostSignificantBits()).putLong(player.getLeastSignificantBits());
+						for(int stat=0; stat<STATS; stat++) recordBuffer.putLong(0);
+					}
+					else readFully(records, recordBuffer, HEADER_LENGTH+(long)id*RECORD_LENGTH);
+
+					for(int stat=0; stat<STATS; stat++){
+						if(amounts[stat]<=0) continue;
+						long value = recordBuffer.getLong(16+stat*8)+amounts[stat];
+						recordBuffer.putLong(16+stat*8, value);
+						updateTop(player, stat, value);
+					}
+					recordBuffer.clear();
+					writeFully(records, recordBuffer, HEADER_LENGTH+(long)id*RECORD_LENGTH);
+				}
+
+				writeTop();
+				writeCount(index, recordCount);
+			}
+			publishLeaders();
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Stats] Failed to save player stats: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a player's stats from their record. Only called on the writer thread.
+	 * @param player the UUID of the player
+	 * @return the value of each stat, by ordinal, all 0 if the player has no stats
+	 */
+	long[] read(UUID player){
+		long[] values = new long[STATS];
+		if(indexCapacity==0) return values;
+		try(FileChannel records = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)){
+			findSlot(index, player);
+			int id = slotBuffer.getInt(16)-1;
+			if(id<0) return values;
+			readFully(records, recordBuffer, HEADER_LENGTH+(long)id*RECORD_LENGTH);
+			for(int stat=0; stat<STATS; stat++) values[stat] = recordBuffer.getLong(16+stat*8);
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Stats] Failed to read player stats: "+e.getMessage());
+		}
+		return values;
+	}
+
+	/**
+	 * Finds the index slot of a player, or the empty slot where they would go.
+	 * The slot is left in the slot buffer, with an id+1 of 0 if it is empty.
+	 * @return the position of the slot in the index file
+	 */
+	private long findSlot(FileChannel index, UUID player) throws IOException {
+		long most = player.getMostSignificantBits(), least = player.getLeastSignificantBits();
+		int slot = hash(most, least) & (indexCapacity-1);
+		while(true){
+			long position = INDEX_HEADER_LENGTH+(long)slot*SLOT_LENGTH;
+			readFully(index, slotBuffer, position);
+			if(slotBuffer.getInt(16)==0 || (slotBuffer.getLong(0)==most && slotBuffer.getLong(8)==least)) return position;
+			slot = (slot+1) & (indexCapacity-1);
+		}
+	}
+
+	private void writeCount(FileChannel index, int count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(count).flip();
+		writeFully(index, buffer, INDEX_COUNT_POSITION);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while(buffer.hasRemaining()){
+			int read = channel.read(buffer, position+buffer.position());
+			if(read<0) throw new EOFException("Stats file ends early");
+		}
+		buffer.flip();
+	}
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) position += channel.write(buffer, position);
+	}
+
+
+	/**
+	 * Moves a player up the leaders for a stat, after it increased. Only called on the writer thread.
+	 * The leaders are only ever passed by players whose stat increased, so this keeps them exact.
+	 */
+	private void updateTop(UUID player, int stat, long value){
+		int offset = stat*MAX_TOP;
+		int count = topCount[stat];
+
+		// Find the player's current rank, or enter at the bottom if there is room or they beat the last leader
+		int rank = -1;
+		for(int i=0; i<count; i++){
+			if(topPlayers[offset+i].equals(player)){
+				rank = i;
+				break;
+			}
+		}
+		if(rank==-1){
+			if(value<=0) return;
+			if(count<MAX_TOP) rank = topCount[stat]++;
+			else if(value>topValues[offset+count-1]) rank = count-1;
+			else return;
+			topPlayers[offset+rank] = player;
+		}
+		topValues[offset+rank] = value;
+
+		// Move up past anyone they now beat
+		while(rank>0 && value>topValues[offset+rank-1]){
+			topPlayers[offset+rank] = topPlayers[offset+rank-1];
+			topValues[offset+rank] = topValues[offset+rank-1];
+			topPlayers[offset+rank-1] = player;
+			topValues[offset+rank-1] = value;
+			rank--;
+		}
+	}
+
+	/**
+	 * Saves the leaders, with the number of records they include. The file is replaced atomically.
+	 */
+	private void writeTop() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)){
+			out.writeInt(TOP_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(recordCount);
+			for(int stat=0; stat<STATS; stat++){
+				out.writeByte(topCount[stat]);
+				for(int rank=0; rank<topCount[stat]; rank++){
+					UUID player = topPlayers[stat*MAX_TOP+rank];
+					out.writeLong(player.getMostSignificantBits());
+					out.writeLong(player.getLeastSignificantBits());
+					out.writeLong(topValues[stat*MAX_TOP+rank]);
+				}
+			}
+		}
+		replace(topFile, ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	private void publishLeaders(){
+		leaders = new Leaders(topPlayers.clone(), topValues.clone(), topCount.clone());
+	}
+
+	/**
+	 * Replaces a file atomically, so a crash mid-write keeps the previous file.
+	 */
+	private static void replace(File target, ByteBuffer contents) throws IOException {
+		File tempFile = new File(target.getPath()+".tmp");
+		try(FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			writeFully(channel, contents, 0);
+		}
+		try {
+			Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e){
+			Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	/**
+	 * Gets an info prompt about a player's stats. Their record is read off the main thread.
+	 * @param player the player
+	 * @param callback called on the main thread with a Prompt with the player's stats
+	 */
+	void getInfo(OfflinePlayer player, Consumer<Prompt> callback){
+		UUID playerId = player.getUniqueId();
+		String name = player.getName();
+		// Changes not flushed yet are added to what the writer reads, which includes every batch flushed before now
+		long[] unflushed = pending.containsKey(playerId) ? pending.get(playerId).clone() : new long[STATS];
+		writer.execute(() -> {
+			long[] values = read(playerId);
+			if(!plugin.isEnabled()) return;
+			Bukkit.getScheduler().runTask(plugin, () -> {
+				Prompt prompt = new Prompt();
+				prompt.addQuestion("&8--- &9CTW Stats: "+name+" &8---");
+				for(Stat stat : Stat.values()){
+					prompt.addQuestion("- "+stat.getDisplayName()+": "+stat.format(values[stat.ordinal()]+unflushed[stat.ordinal()]));
+				}
+				callback.accept(prompt);
+			});
+		});
+	}
+	/**
+	 * Gets an info prompt with the leaders for a stat, as of the last batch written.
+	 * @param stat the stat to rank by
+	 * @return a Prompt with the top players
+	 */
+	Prompt getTopInfo(Stat stat){
+		Leaders leaders = this.leaders;
+		Prompt prompt = new Prompt();
+		prompt.addQuestion("&8--- &9CTW Top Players: "+stat.getDisplayName()+" &8---");
+		int offset = stat.ordinal()*MAX_TOP;
+		for(int i=0; i<leaders.counts[stat.ordinal()]; i++){
+			UUID leader = leaders.players[offset+i];
+			String name = Bukkit.getOfflinePlayer(leader).getName();
+			prompt.addQuestion((i+1)+". "+(name!=null ? name : leader.toString())+" - "+stat.format(leaders.values[offset+i]));
+		}
+		if(leaders.counts[stat.ordinal()]==0) prompt.addQuestion("No stats recorded yet.");
+		return prompt;
+	}
+}
@@ -0,0 +1,314 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bukkit.Bukkit;
+
+/**
+ * A cluster transport over TCP.
+ * <p>
+ * Listens for peers on a port, and keeps connections open to a list of peers, reconnecting when they drop.
+ * Only connections from the addresses of configured peers are accepted, so every server should list the others.
+ * Before anything else is read, both sides prove they know the cluster's shared secret, with an HMAC over
+ * random challenges and their node ids, so the secret itself is never sent.
+ * <p>
+ * Messages are sent as length-prefixed frames, queued per connection and written by a background thread,
+ * so broadcasting never blocks the main thread. A peer that falls too far behind is disconnected, and
+ * catches up from the full state when it reconnects.
+ * @author Kyle Nanakdewa
+ */
+final class TcpTransport implements ClusterTransport {
+
+	/** The largest message accepted, in bytes. */
+	private static final int MAX_MESSAGE_SIZE = 16*1024*1024;
+	/** The most messages queued for a peer before it is disconnected. */
+	private static final int MAX_QUEUED_MESSAGES = 1024;
+	/** How long to wait between attempts to connect to a peer, in milliseconds. */
+	private static final long RECONNECT_DELAY = 5000;
+	/** How long a peer has to complete the handshake, in milliseconds. */
+	private static final int HANDSHAKE_TIMEOUT = 10000;
+	/** Identifies a CTW cluster handshake. */
+	private static final int HANDSHAKE_MAGIC = 0x43545748;
+	/** The length of each side's random challenge, in bytes. */
+	private static final int CHALLENGE_LENGTH = 16;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	/** The address to listen on. */
+	private final InetAddress bindAddress;
+	/** The port to listen on, or 0 to not listen. */
+	private final int port;
+	/** The peers to connect to, and accept connections from. */
+	private final List<InetSocketAddress> peers;
+	/** The secret shared by every server in the cluster. */
+	private final byte[] secret;
+
+	private final SecureRandom random = new SecureRandom();
+	/** The open connections that completed the handshake. */
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	/** The socket listening for peers. */
+	private ServerSocket serverSocket;
+	/** The node id of this server. */
+	private String nodeId;
+	/** The listener for messages. */
+	private Listener listener;
+	/** Whether the transport is running. */
+	private volatile boolean running;
+
+	/**
+	 * Creates a TCP transport.
+	 * @param bindAddress the address to listen on
+	 * @param port the port to listen on, or 0 to only connect out
+	 * @param peers the peers to connect to, and accept connections from
+	 * @param secret the secret shared by every server in the cluster
+	 */
+	TcpTransport(InetAddress bindAddress, int port, List<InetSocketAddress> peers, String secret){
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.peers = peers;
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void start(String nodeId, Listener listener) throws IOException {
+		this.nodeId = nodeId;
+		this.listener = listener;
+		running = true;
+
+		if(port>0){
+			Set<InetAddress> peerAddresses = new HashSet<InetAddress>();
+			for(InetSocketAddress peer : peers){
+				if(peer.getAddress()!=null) peerAddresses.add(peer.getAddress());
+			}
+
+			serverSocket = new ServerSocket(port, 50, bindAddress);
+			startThread("CTW-Cluster-Accept", () -> {
+				while(running){
+					try {
+						Socket socket = serverSocket.accept();
+						if(!peerAddresses.contains(socket.getInetAddress())){
+							Bukkit.getLogger().warning("[CTW Cluster] Rejected connection from "+socket.getInetAddress().getHostAddress()+", which is not a configured peer");
+							socket.close();
+							continue;
+						}
+						startThread("CTW-Cluster-In-"+socket.getRemoteSocketAddress(), () -> new Connection(socket).run());
+					} catch(IOException e){
+						if(running) Bukkit.getLogger().warning("[CTW Cluster] Failed to accept peer: "+e.getMessage());
+					}
+				}
+			});
+		}
+
+		for(InetSocketAddress peer : peers){
+			startThread("CTW-Cluster-Out-"+peer, () -> {
+				while(running){
+					try {
+						Socket socket = new Socket();
+						socket.connect(peer, (int)RECONNECT_DELAY);
+						new Connection(socket).run();
+					} catch(IOException e){
+						// Peer is down, try again later
+					}
+					try {
+						Thread.sleep(RECONNECT_DELAY);
+					} catch(InterruptedException e){
+						return;
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void broadcast(byte[] message){
+		for(Connection connection : connections){
+			if(!connection.outbox.offer(message)){
+				Bukkit.getLogger().warning("[CTW Cluster] Peer "+connection.peerNode+" is too far behind, disconnecting");
+				connection.close();
+			}
+		}
+	}
+
+	@Override
+	public void close(){
+		running = false;
+		try {
+			if(serverSocket!=null) serverSocket.close();
+		} catch(IOException e){
+			// Closing anyway
+		}
+		for(Connection connection : connections) connection.close();
+	}
+
+	@Override
+	public int getPeerCount(){
+		return connections.size();
+	}
+
+	@Override
+	public String getDescription(){
+		return "TCP"+(port>0 ? " on "+bindAddress.getHostAddress()+":"+port : "")+", "+peers.size()+" configured peers";
+	}
+
+	private static void startThread(String name, Runnable task){
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Signs a handshake: the challenge sent by the side proving itself, the other side's challenge, then its node id.
+	 */
+	private byte[] sign(byte[] firstChallenge, byte[] secondChallenge, String node) throws IOException {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			mac.update(firstChallenge);
+			mac.update(secondChallenge);
+			return mac.doFinal(node.getBytes(StandardCharsets.UTF_8));
+		} catch(GeneralSecurityException e){
+			throw new IOException("Failed to sign handshake: "+e.getMessage());
+		}
+	}
+
+
+	/**
+	 * A connection to a peer. Reads on the thread that runs it, and writes on its own thread.
+	 */
+	private final class Connection {
+		private final Socket socket;
+		/** The messages waiting to be written. */
+		private final BlockingQueue<byte[]> outbox = new LinkedBlockingQueue<byte[]>(MAX_QUEUED_MESSAGES);
+		private volatile Thread writer;
+		/** The node id of the peer, or null until the handshake is complete. */
+		private volatile String peerNode;
+		/** Whether this connection has been closed. */
+		private boolean closed;
+
+		private Connection(Socket socket){
+			this.socket = socket;
+		}
+
+		/**
+		 * Proves both sides know the shared secret, and exchanges node ids.
+		 * @return the node id of the peer
+		 */
+		private String handshake(DataInputStream in, DataOutputStream out) throws IOException {
+			byte[] challenge = new byte[CHALLENGE_LENGTH];
+			random.nextBytes(challenge);
+			out.writeInt(HANDSHAKE_MAGIC);
+			out.write(challenge);
+			out.flush();
+
+			if(in.readInt()!=HANDSHAKE_MAGIC) throw new IOException("Not a CTW cluster peer");
+			byte[] peerChallenge = new byte[CHALLENGE_LENGTH];
+			in.readFully(peerChallenge);
+			// A peer echoing our own challenge back is trying to reuse our answer
+			if(Arrays.equals(challenge, peerChallenge)) throw new IOException("Peer reused our challenge");
+
+			out.writeUTF(nodeId);
+			out.write(sign(peerChallenge, challenge, nodeId));
+			out.flush();
+
+			String node = in.readUTF();
+			byte[] expected = sign(challenge, peerChallenge, node);
+			byte[] proof = new byte[expected.length];
+			in.readFully(proof);
+			if(!MessageDigest.isEqual(proof, expected)) throw new IOException("Peer does not know the cluster secret");
+			if(node.equals(nodeId)) throw new IOException("Peer has the same node id as this server");
+			return node;
+		}
+
+		/**
+		 * Completes the handshake, sends the full state, then reads messages until the connection closes.
+		 */
+		private void run(){
+			try {
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+				socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+				String node;
+				try {
+					node = handshake(in, out);
+				} catch(IOException e){
+					Bukkit.getLogger().warning("[CTW Cluster] Handshake with "+socket.getRemoteSocketAddress()+" failed: "+e.getMessage());
+					return;
+				}
+				socket.setSoTimeout(0);
+
+				writer = new Thread(() -> {
+					try {
+						while(true){
+							byte[] message = outbox.take();
+							out.writeInt(message.length);
+							out.write(message);
+							if(outbox.isEmpty()) out.flush();
+						}
+					} catch(IOException | InterruptedException e){
+						close();
+					}
+				}, "CTW-Cluster-Write-"+node);
+				writer.setDaemon(true);
+
+				// Receive broadcasts from now on, so nothing made after the full state is taken is missed
+				synchronized(this){
+					if(closed || !running) return;
+					peerNode = node;
+					connections.add(this);
+					writer.start();
+				}
+				if(!outbox.offer(listener.onPeerConnected(node))) return;
+
+				while(running){
+					int length = in.readInt();
+					if(length<0 || length>MAX_MESSAGE_SIZE) throw new IOException("Invalid message length "+length);
+					byte[] message = new byte[length];
+					in.readFully(message);
+					listener.onMessage(node, message);
+				}
+			} catch(IOException e){
+				// Peer disconnected
+			} finally {
+				close();
+			}
+		}
+
+		private void close(){
+			synchronized(this){
+				if(closed) return;
+				closed = true;
+			}
+			connections.remove(this);
+			if(writer!=null) writer.interrupt();
+			try {
+				socket.close();
+			} catch(IOException e){
+				// Closing anyway
+			}
+			if(peerNode!=null) listener.onPeerDisconnected(peerNode);
+		}
+	}
+}
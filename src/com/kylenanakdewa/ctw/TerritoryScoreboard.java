@@ -0,0 +1,425 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.kylenanakdewa.core.common.prompts.Prompt;
+import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.warpstones.Warpstone;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scoreboard.DisplaySlot;
+import org.bukkit.scoreboard.Objective;
+import org.bukkit.scoreboard.Scoreboard;
+
+/**
+ * The territory held by each realm in an arena: Warpstones held, Guardian Trees controlled, and cumulative hold time.
+ * <p>
+ * Totals are counted once when the arena starts, then kept up to date from ownership changes, so they
+ * never need to be recounted. Changes are shown on a sidebar scoreboard on the next tick, only
+ * updating the lines that changed. Hold times are saved periodically, written off the main thread.
+ * <p>
+ * The scoreboard a player had before being shown the sidebar is given back when they leave the arena,
+ * so scoreboards from other plugins are not lost.
+ * @author Kyle Nanakdewa
+ */
+final class TerritoryScoreboard {
+
+	/** The longest line the sidebar can show. */
+	private static final int MAX_LINE_LENGTH = 40;
+	/** The hex digits used to make each realm's line unique, as invisible color codes. */
+	private static final String HEX_DIGITS = "0123456789abcdef";
+
+	/**
+	 * The territory of one realm.
+	 */
+	static final class RealmTerritory {
+		/** The identifier of the realm. */
+		private final String realmId;
+		/** The number of Warpstones held. */
+		private int stones;
+		/** The number of Guardian Trees controlled. */
+		private int trees;
+		/** The hold time of every Warpstone held, up to {@link #since}, in milliseconds. */
+		private long holdTime;
+		/** When the hold time was last brought up to date, in epoch milliseconds. */
+		private long since = System.currentTimeMillis();
+
+		private RealmTerritory(String realmId){
+			this.realmId = realmId;
+		}
+
+		/** Brings the hold time up to date, before the number of stones held changes. */
+		private void updateHoldTime(long now){
+			holdTime += stones*(now-since);
+			since = now;
+		}
+
+		/**
+		 * Gets the identifier of the realm.
+		 * @return the realm identifier
+		 */
+		String getRealmId(){
+			return realmId;
+		}
+		/**
+		 * Gets the number of Warpstones held by the realm.
+		 * @return the Warpstones held
+		 */
+		int getStones(){
+			return stones;
+		}
+		/**
+		 * Gets the number of Guardian Trees controlled by the realm.
+		 * @return the trees controlled
+		 */
+		int getTrees(){
+			return trees;
+		}
+		/**
+		 * Gets the total time the realm has held each of its Warpstones, added together.
+		 * @return the cumulative hold time, in milliseconds
+		 */
+		long getHoldTime(){
+			return holdTime + stones*(System.currentTimeMillis()-since);
+		}
+	}
+
+
+	/** The arena this scoreboard is for. */
+	private final Arena arena;
+	/** The file the hold times are saved to. */
+	private final File file;
+
+	/** The territory of each realm, by realm identifier. */
+	private final Map<String,RealmTerritory> territories = new HashMap<String,RealmTerritory>();
+	/** The Guardian Trees each Warpstone is part of. */
+	private final Map<Warpstone,List<GuardianTree>> treesByWarpstone = new HashMap<Warpstone,List<GuardianTree>>();
+	/** The realm controlling each Guardian Tree, by tree. Trees that are not controlled are absent. */
+	private final Map<GuardianTree,String> treeControllers = new HashMap<GuardianTree,String>();
+	/** Whether the totals have been counted, so changes can be applied to them. */
+	private boolean counted;
+
+	/** The sidebar scoreboard, or null if the sidebar is disabled. */
+	private Scoreboard scoreboard;
+	/** The sidebar objective, or null if the sidebar is disabled. */
+	private Objective objective;
+	/** The line currently shown on the sidebar for each realm, by realm identifier. */
+	private final Map<String,String> shownLines = new HashMap<String,String>();
+	/** The invisible suffix that keeps each realm's line unique, by realm identifier. */
+	private final Map<String,String> lineSuffixes = new HashMap<String,String>();
+	/** The scoreboard each player had before being shown the sidebar, by player UUID. */
+	private final Map<UUID,Scoreboard> replacedScoreboards = new HashMap<UUID,Scoreboard>();
+	/** The realms whose sidebar lines need updating. */
+	private final Set<String> dirtyRealms = new HashSet<String>();
+	/** Whether an update is scheduled for the next tick. */
+	private boolean updatePending;
+	/** The number of saves started, so an older save never overwrites a newer one. */
+	private long saveCount;
+	/** Whether any Warpstone changed owner since the last save. */
+	private boolean unsaved;
+	/** The number of Warpstones held by any realm. While none are, hold times don't change. */
+	private int heldStones;
+	/** The number of the last save written to disk. Guarded by this. */
+	private long lastWrittenSave;
+
+
+	/**
+	 * Creates a territory scoreboard.
+	 * @param arena the arena to track territory in
+	 * @param file the file to save hold times to
+	 */
+	TerritoryScoreboard(Arena arena, File file){
+		this.arena = arena;
+		this.file = file;
+	}
+
+	/**
+	 * Counts the territory held by each realm, and loads saved hold times.
+	 * Only done once, when the arena starts. After that, totals are kept up to date by {@link #onOwnerChanged(Warpstone, Realm, Realm)}.
+	 * @param warpstones the capture data for all Warpstones in the arena
+	 * @param trees the Guardian Trees in the arena
+	 * @param showSidebar whether to set up the sidebar scoreboard
+	 */
+	void count(Collection<WarpstoneCaptureData> warpstones, Collection<GuardianTree> trees, boolean showSidebar){
+		YamlConfiguration saved = YamlConfiguration.loadConfiguration(file);
+		for(String realmId : saved.getKeys(false)){
+			getTerritory(realmId).holdTime = saved.getLong(realmId);
+		}
+
+		for(WarpstoneCaptureData data : warpstones){
+			if(data.getRealm()!=null){
+				getTerritory(data.getRealm().getIdentifier()).stones++;
+				heldStones++;
+			}
+		}
+		for(GuardianTree tree : trees){
+			for(Warpstone warpstone : tree.getWarpstones()){
+				treesByWarpstone.computeIfAbsent(warpstone, key -> new ArrayList<GuardianTree>()).add(tree);
+			}
+			Realm controller = tree.getControllingRealm();
+			if(controller!=null){
+				treeControllers.put(tree, controller.getIdentifier());
+				getTerritory(controller.getIdentifier()).trees++;
+			}
+		}
+		counted = true;
+
+		if(showSidebar){
+			scoreboard = Bukkit.getScoreboardManager().getNewScoreboard();
+			objective = scoreboard.registerNewObjective("ctw", "dummy");
+			objective.setDisplayName(ChatColor.BLUE+"Territory");
+			objective.setDisplaySlot(DisplaySlot.SIDEBAR);
+			dirtyRealms.addAll(territories.keySet());
+			updateSidebar();
+		}
+	}
+
+	private RealmTerritory getTerritory(String realmId){
+		return territories.computeIfAbsent(realmId, key -> new RealmTerritory(key));
+	}
+
+
+	/**
+	 * Updates the totals after a Warpstone changes owner.
+	 * @param warpstone the Warpstone
+	 * @param oldRealm the previous owner, or null if it was neutral
+	 * @param newRealm the new owner, or null if it is now neutral
+	 */
+	void onOwnerChanged(Warpstone warpstone, Realm oldRealm, Realm newRealm){
+		if(!counted) return;
+		String oldId = oldRealm!=null ? oldRealm.getIdentifier() : null;
+		String newId = newRealm!=null ? newRealm.getIdentifier() : null;
+		if(oldId==null ? newId==null : oldId.equals(newId)) return;
+
+		long now = System.currentTimeMillis();
+		unsaved = true;
+		if(oldId!=null){
+			RealmTerritory territory = getTerritory(oldId);
+			territory.updateHoldTime(now);
+			territory.stones--;
+			heldStones--;
+			markDirty(oldId);
+		}
+		if(newId!=null){
+			RealmTerritory territory = getTerritory(newId);
+			territory.updateHoldTime(now);
+			territory.stones++;
+			heldStones++;
+			markDirty(newId);
+		}
+
+		// Only the trees this Warpstone is part of can change controller
+		for(GuardianTree tree : treesByWarpstone.getOrDefault(warpstone, Collections.<GuardianTree>emptyList())){
+			Realm controller = tree.getControllingRealm();
+			String controllerId = controller!=null ? controller.getIdentifier() : null;
+			String oldControllerId = controllerId!=null ? treeControllers.put(tree, controllerId) : treeControllers.remove(tree);
+			if(oldControllerId==null ? controllerId==null : oldControllerId.equals(controllerId)) continue;
+
+			if(oldControllerId!=null){
+				getTerritory(oldControllerId).trees--;
+				markDirty(oldControllerId);
+			}
+			if(controllerId!=null){
+				getTerritory(controllerId).trees++;
+				markDirty(controllerId);
+			}
+		}
+	}
+
+	/**
+	 * Marks a realm's line as changed, and schedules the sidebar to be updated on the next tick.
+	 * Many changes at once, such as bulk commands, are applied together.
+	 */
+	private void markDirty(String realmId){
+		dirtyRealms.add(realmId);
+		if(updatePending) return;
+		updatePending = true;
+		Bukkit.getScheduler().runTask(CTWPlugin.getPlugin(), () -> {
+			updatePending = false;
+			updateSidebar();
+		});
+	}
+
+	/**
+	 * Updates the sidebar lines of realms that changed. Lines that didn't change are not touched, so nothing is sent for them.
+	 */
+	private void updateSidebar(){
+		if(objective==null){
+			dirtyRealms.clear();
+			return;
+		}
+
+		for(String realmId : dirtyRealms){
+			RealmTerritory territory = territories.get(realmId);
+			String oldLine = shownLines.get(realmId);
+			String newLine = territory.stones>0 || territory.trees>0 ? getLine(territory) : null;
+
+			if(oldLine!=null && !oldLine.equals(newLine)) scoreboard.resetScores(oldLine);
+			if(newLine!=null){
+				objective.getScore(newLine).setScore(territory.stones);
+				shownLines.put(realmId, newLine);
+			} else shownLines.remove(realmId);
+		}
+		dirtyRealms.clear();
+	}
+
+	/**
+	 * Gets the sidebar line for a realm. Only the realm name is shortened to fit, so color codes are never cut,
+	 * and an invisible suffix keeps realms with the same shortened name on separate lines.
+	 */
+	private String getLine(RealmTerritory territory){
+		Realm realm = CTWPlugin.getRealmProvider().getRealm(territory.realmId);
+		String color = realm!=null && realm.getColor()!=null ? realm.getColor().toString() : "";
+		String name = realm!=null ? realm.getName() : territory.realmId;
+		String trees = ChatColor.GRAY+" ("+territory.trees+" trees)";
+		String suffix = lineSuffixes.computeIfAbsent(territory.realmId, key -> getSuffix(lineSuffixes.size()));
+
+		int maxNameLength = Math.max(0, MAX_LINE_LENGTH-color.length()-trees.length()-suffix.length());
+		if(name.length()>maxNameLength){
+			name = name.substring(0, maxNameLength);
+			if(name.endsWith(String.valueOf(ChatColor.COLOR_CHAR))) name = name.substring(0, name.length()-1);
+		}
+		return color+name+trees+suffix;
+	}
+	private static String getSuffix(int index){
+		StringBuilder suffix = new StringBuilder().append(ChatColor.RESET);
+		do {
+			suffix.append(ChatColor.COLOR_CHAR).append(HEX_DIGITS.charAt(index%16));
+			index /= 16;
+		} while(index>0);
+		return suffix.toString();
+	}
+
+
+	/**
+	 * Shows the sidebar to a player, if it is enabled. The scoreboard they had is kept, to give back when they leave.
+	 * @param player the player to show it to
+	 * @return true if the sidebar was shown
+	 */
+	boolean showSidebar(Player player){
+		if(scoreboard==null) return false;
+		if(player.getScoreboard()!=scoreboard){
+			replacedScoreboards.put(player.getUniqueId(), player.getScoreboard());
+			player.setScoreboard(scoreboard);
+		}
+		return true;
+	}
+	/**
+	 * Stops showing the sidebar to a player, giving back the scoreboard they had before.
+	 * If another plugin has since given them a different scoreboard, that one is left alone.
+	 * @param player the player to hide it from
+	 */
+	void hideSidebar(Player player){
+		Scoreboard replaced = replacedScoreboards.remove(player.getUniqueId());
+		if(scoreboard==null || player.getScoreboard()!=scoreboard) return;
+		player.setScoreboard(replaced!=null ? replaced : Bukkit.getScoreboardManager().getMainScoreboard());
+	}
+	/**
+	 * Stops showing the sidebar to every player. Used when the plugin is disabled.
+	 */
+	void hideAll(){
+		for(UUID playerId : new ArrayList<UUID>(replacedScoreboards.keySet())){
+			Player player = Bukkit.getPlayer(playerId);
+			if(player!=null) hideSidebar(player);
+			else replacedScoreboards.remove(playerId);
+		}
+	}
+
+
+	/**
+	 * Starts saving hold times periodically. The save file is encoded on the main thread, and written off it.
+	 * <p>
+	 * Saves are skipped while nothing changed: when no Warpstones are held, or the arena is dormant, unless
+	 * a Warpstone changed owner since the last save. Hold time gained in the meantime is included in the next save.
+	 * @param plugin the CTW plugin
+	 * @param interval how often to save, in ticks
+	 */
+	void start(CTWPlugin plugin, long interval){
+		Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
+			if(!counted) return;
+			if(!unsaved && (heldStones==0 || arena.isDormant())) return;
+			long save = ++saveCount;
+			String saved = encode();
+			Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> write(save, saved));
+		}, interval, interval);
+	}
+
+	/**
+	 * Saves the hold time of each realm immediately, on the current thread. Used when the plugin is disabled.
+	 */
+	void save(){
+		if(!counted) return;
+		write(++saveCount, encode());
+	}
+
+	private String encode(){
+		unsaved = false;
+		long now = System.currentTimeMillis();
+		YamlConfiguration saved = new YamlConfiguration();
+		for(RealmTerritory territory : territories.values()){
+			territory.updateHoldTime(now);
+			saved.set(territory.realmId, territory.holdTime);
+		}
+		return saved.saveToString();
+	}
+
+	private synchronized void write(long save, String saved){
+		if(save<lastWrittenSave) return;
+		lastWrittenSave = save;
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(file.toPath(), saved.getBytes(StandardCharsets.UTF_8));
+		} catch(IOException e){
+			Bukkit.getLogger().warning("[CTW Territory] Failed to save hold times for arena "+arena.getName()+": "+e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Gets the territory of each realm, sorted with the most Warpstones held first.
+	 * Ties are broken by trees controlled, then hold time.
+	 * @return the realm territories, most first
+	 */
+	List<RealmTerritory> getTop(){
+		List<RealmTerritory> top = new ArrayList<RealmTerritory>(territories.values());
+		top.sort((a, b) -> {
+			if(a.stones!=b.stones) return Integer.compare(b.stones, a.stones);
+			if(a.trees!=b.trees) return Integer.compare(b.trees, a.trees);
+			return Long.compare(b.getHoldTime(), a.getHoldTime());
+		});
+		return top;
+	}
+
+	/**
+	 * Gets an info prompt ranking the realms in this arena.
+	 * @return a Prompt with the territory of each realm
+	 */
+	Prompt getInfo(){
+		Prompt prompt = new Prompt();
+		prompt.addQuestion("&8--- &9CTW Territory: "+arena.getName()+" &8---");
+		int rank = 0;
+		for(RealmTerritory territory : getTop()){
+			Realm realm = CTWPlugin.getRealmProvider().getRealm(territory.realmId);
+			String realmName = realm!=null ? realm.getColor()+realm.getName() : territory.realmId;
+			long minutes = territory.getHoldTime()/60000;
+			prompt.addAnswer(++rank+". "+realmName+"&f - "+territory.stones+" stones, "+territory.trees+" trees, held "+(minutes/60)+"h "+(minutes%60)+"m", "command_ctw realm "+territory.realmId);
+		}
+		if(rank==0) prompt.addQuestion("No realm has held any Warpstones yet.");
+		return prompt;
+	}
+}
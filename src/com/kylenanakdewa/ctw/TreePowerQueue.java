@@ -0,0 +1,129 @@
+package com.kylenanakdewa.ctw;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.potion.PotionEffect;
+
+/**
+ * Grants Guardian Tree powers in an arena, a few players each tick.
+ * <p>
+ * Every cycle, the players who should get each controlled tree's powers are queued. The queue is then
+ * worked through a few players per tick, so granting powers to a full server is spread over many ticks,
+ * instead of a spike every cycle.
+ * <p>
+ * Cycles start on a fixed schedule, and each queue is always finished within {@link #DRAIN_TICKS}, going
+ * over the budget if there are too many players for it. So every player gets their powers again before
+ * the last ones run out, however many players are queued.
+ * @author Kyle Nanakdewa
+ */
+final class TreePowerQueue {
+
+	/** How often each player is given their powers, in ticks. */
+	private static final int CYCLE = 60;
+	/**
+	 * The most ticks each cycle's queue takes to finish. Players are given their powers again at most
+	 * CYCLE+DRAIN_TICKS ticks apart, which is less than the 100 ticks powers last.
+	 */
+	private static final int DRAIN_TICKS = 30;
+
+	/** The arena to grant powers in. */
+	private final Arena arena;
+	/** The most players to grant powers to each tick, or 0 for no limit. */
+	private final int budget;
+
+	/** The players to grant powers to this cycle. */
+	private final List<Player> players = new ArrayList<Player>();
+	/** The effect to grant to each player, at the same index as the player. */
+	private final List<PotionEffect> effects = new ArrayList<PotionEffect>();
+	/** The index of the next player to grant powers to. */
+	private int next;
+	/** The number of players to grant powers to each tick, this cycle. */
+	private int perTick;
+	/** The ticks left until the next cycle can start. */
+	private int ticksUntilCycle;
+	/** The arena's world, looked up once per cycle, or null if it runs on all other worlds. */
+	private World world;
+	/** Whether each world is part of the arena, this cycle. Only used when the arena runs on all other worlds. */
+	private final Map<World,Boolean> worldsInArena = new IdentityHashMap<World,Boolean>();
+
+
+	/**
+	 * Creates a tree power queue.
+	 * @param arena the arena to grant powers in
+	 * @param budget the most players to grant powers to each tick, or 0 for no limit
+	 */
+	TreePowerQueue(Arena arena, int budget){
+		this.arena = arena;
+		this.budget = Math.max(0, budget);
+	}
+
+	/**
+	 * Queues a player to be given a tree's effect this cycle.
+	 * @param player the player
+	 * @param effect the effect to give
+	 */
+	void add(Player player, PotionEffect effect){
+		players.add(player);
+		effects.add(effect);
+	}
+
+	/**
+	 * Grants powers to the next players in the queue, starting a new cycle when it's time.
+	 * Called every tick while the arena is awake.
+	 */
+	void tick(){
+		if(ticksUntilCycle>0) ticksUntilCycle--;
+		if(ticksUntilCycle==0){
+			// The last cycle's queue always finished long before this
+			clear();
+			world = arena.getWorld();
+			worldsInArena.clear();
+			arena.getTrees().forEach(tree -> tree.queuePowers(this));
+			ticksUntilCycle = CYCLE;
+			perTick = budget>0 ? Math.max(budget, (players.size()+DRAIN_TICKS-1)/DRAIN_TICKS) : players.size();
+		}
+		if(next>=players.size()) return;
+
+		// Players may have left or changed worlds since they were queued
+		int end = Math.min(players.size(), next+perTick);
+		for(; next<end; next++){
+			Player player = players.get(next);
+			if(!player.isOnline()) continue;
+			if(isInArena(player.getWorld())){
+				player.addPotionEffect(effects.get(next), true);
+			}
+		}
+
+		if(next>=players.size()) clear();
+	}
+
+	/**
+	 * Checks whether a world is part of the arena, without looking the arena's world up for every player.
+	 */
+	private boolean isInArena(World playerWorld){
+		if(world!=null) return playerWorld==world;
+		return worldsInArena.computeIfAbsent(playerWorld, key -> arena.contains(key));
+	}
+
+	/**
+	 * Empties the queue. The next cycle still starts on schedule.
+	 */
+	void clear(){
+		players.clear();
+		effects.clear();
+		next = 0;
+	}
+
+	/**
+	 * Gets the number of players still waiting for their powers this cycle.
+	 * @return the number of queued players
+	 */
+	int size(){
+		return players.size()-next;
+	}
+}
@@ -0,0 +1,130 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable version vector, counting the changes each cluster node has made to a value.
+ * Used to tell whether one change happened after another, or if they were made concurrently.
+ * @author Kyle Nanakdewa
+ */
+final class VersionVector {
+
+	/** How two versions relate to each other. */
+	enum Order {
+		/** This version happened before the other. */
+		BEFORE,
+		/** This version happened after the other. */
+		AFTER,
+		/** The versions are the same. */
+		EQUAL,
+		/** The versions were made concurrently, on different nodes. */
+		CONCURRENT
+	}
+
+	/** A version with no changes. */
+	static final VersionVector EMPTY = new VersionVector(Collections.<String,Long>emptyMap());
+
+	/** The number of changes made by each node. */
+	private final Map<String,Long> counters;
+
+	private VersionVector(Map<String,Long> counters){
+		this.counters = counters;
+	}
+
+	/**
+	 * Gets the version after a change by a node.
+	 * <p>
+	 * Each node numbers its changes with a single counter that only goes up, even across restarts,
+	 * so a node's new change is never mistaken for one it made before.
+	 * @param node the node making the change
+	 * @param counter the node's counter for the change, higher than any it used before
+	 * @return the new version
+	 */
+	VersionVector withChange(String node, long counter){
+		Map<String,Long> changed = new HashMap<String,Long>(counters);
+		changed.put(node, counter);
+		return new VersionVector(changed);
+	}
+
+	/**
+	 * Gets the counter of a node in this version.
+	 * @param node the node
+	 * @return the node's counter, or 0 if it has not changed the value
+	 */
+	long get(String node){
+		return counters.getOrDefault(node, 0L);
+	}
+
+	/**
+	 * Gets a version that includes the changes in both this and another version.
+	 * @param other the other version
+	 * @return the merged version
+	 */
+	VersionVector merge(VersionVector other){
+		Map<String,Long> merged = new HashMap<String,Long>(counters);
+		other.counters.forEach((node, counter) -> merged.merge(node, counter, Math::max));
+		return new VersionVector(merged);
+	}
+
+	/**
+	 * Compares this version to another.
+	 * @param other the other version
+	 * @return how this version relates to the other
+	 */
+	Order compareTo(VersionVector other){
+		boolean before = false;
+		boolean after = false;
+
+		Set<String> nodes = new HashSet<String>(counters.keySet());
+		nodes.addAll(other.counters.keySet());
+		for(String node : nodes){
+			long mine = counters.getOrDefault(node, 0L);
+			long theirs = other.counters.getOrDefault(node, 0L);
+			if(mine<theirs) before = true;
+			else if(mine>theirs) after = true;
+		}
+
+		if(before && after) return Order.CONCURRENT;
+		if(before) return Order.BEFORE;
+		if(after) return Order.AFTER;
+		return Order.EQUAL;
+	}
+
+
+	/**
+	 * Writes this version to a stream.
+	 * @param out the stream to write to
+	 * @throws IOException if the version could not be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeShort(counters.size());
+		for(Map.Entry<String,Long> counter : counters.entrySet()){
+			out.writeUTF(counter.getKey());
+			out.writeLong(counter.getValue());
+		}
+	}
+	/**
+	 * Reads a version from a stream.
+	 * @param in the stream to read from
+	 * @return the version
+	 * @throws IOException if the version could not be read
+	 */
+	static VersionVector read(DataInputStream in) throws IOException {
+		int size = in.readShort();
+		Map<String,Long> counters = new HashMap<String,Long>(size);
+		for(int i=0; i<size; i++) counters.put(in.readUTF(), in.readLong());
+		return new VersionVector(counters);
+	}
+
+	@Override
+	public String toString(){
+		return counters.toString();
+	}
+}
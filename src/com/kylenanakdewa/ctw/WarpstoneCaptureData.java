@@ -1,7 +1,12 @@
 package com.kylenanakdewa.ctw;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.UUID;
 
 import com.kylenanakdewa.core.characters.players.PlayerCharacter;
 import com.kylenanakdewa.core.common.CommonColors;
@@ -9,6 +14,8 @@ import com.kylenanakdewa.core.common.Utils;
 import com.kylenanakdewa.core.common.prompts.Prompt;
 import com.kylenanakdewa.core.realms.Realm;
 import com.kylenanakdewa.core.realms.RealmMember;
+import com.kylenanakdewa.ctw.CaptureJournal.EventType;
+import com.kylenanakdewa.ctw.PlayerStats.Stat;
 import com.kylenanakdewa.warpstones.Warpstone;
 import com.kylenanakdewa.warpstones.WarpstoneSaveDataSection;
 import com.kylenanakdewa.warpstones.events.WarpstoneActivateEvent;
@@ -30,6 +37,8 @@ import org.bukkit.entity.Player;
  */
 public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements RealmMember {
 
+	/** The arena this Warpstone is in. */
+	private final Arena arena;
 	/** Whether this Warpstone can be captured. */
 	private boolean isCapturable;
 	/** The Realm that owns this Warpstone, or null if it is neutral. */
@@ -37,8 +46,14 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 
 	/** The Realm attempting to capture this Warpstone. Null if it's not under capture. */
 	private Realm cappingRealm;
+	/** The Realm capturing this Warpstone on another server in the cluster. Null if it's not under capture there. */
+	private Realm remoteCappingRealm;
 	/** The players capping this Warpstone. */
 	private Set<Player> cappingPlayers;
+	/** The players who were capping before a restart, and have not reconnected yet. */
+	private Set<UUID> reconnectingPlayers = new HashSet<UUID>();
+	/** The remaining time for capping players to reconnect after a restart, in ticks. */
+	private int graceTime;
 	/** The remaining time to cap, in ticks. */
 	private double capTime;
 	/** The progress bar for capturing. */
@@ -50,11 +65,12 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 	private int taskID;
 
 
-	WarpstoneCaptureData(Warpstone warpstone, CTWPlugin plugin) {
+	WarpstoneCaptureData(Warpstone warpstone, Arena arena, CTWPlugin plugin) {
 		super(warpstone, plugin);
+		this.arena = arena;
 
-		// Determine if capturable based on global setting
-		if(warpstone!=null && !warpstone.equals(CTWPlugin.getCTWSpawn()) && !warpstone.equals(Warpstone.getSpawn()) && (CTWPlugin.getCTWWorld()==null || warpstone.getLocation().getWorld().equals(CTWPlugin.getCTWWorld()))){
+		// Determine if capturable based on arena settings
+		if(warpstone!=null && !warpstone.equals(arena.getSpawn()) && !warpstone.equals(Warpstone.getSpawn()) && arena.contains(warpstone.getLocation().getWorld())){
 			isCapturable = true;
 			realm = CTWPlugin.getRealmProvider().getRealm(data.getString("realm"));
 		}
@@ -76,6 +92,13 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 	public boolean isCapturable(){
 		return isCapturable;
 	}
+	/**
+	 * Returns true if this Warpstone is a spawn, which can never be captured.
+	 * @return true if this Warpstone is the arena's spawn or the server spawn
+	 */
+	boolean isSpawn(){
+		return warpstone==null || warpstone.equals(arena.getSpawn()) || warpstone.equals(Warpstone.getSpawn());
+	}
 
 
 	@Override
@@ -96,12 +119,7 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 		// Give warp dust to capping players
 		if(cappingPlayers!=null) cappingPlayers.forEach(player -> player.getInventory().addItem(ItemListener.getRandomWarpDust()));
 
-		this.realm = realm;
-		if(realm!=null){
-			data.set("realm", realm.getIdentifier());
-			CTWPlugin.setLastRealmCap(realm, warpstone);
-		} else data.set("realm", null);
-		stopCapping();
+		applyRealm(realm);
 
 		// Notify all players that warpstone was captured
 		Utils.notifyAll(CommonColors.INFO+"[CTW] "+ChatColor.WHITE+warpstoneNameOrWarpstone+CommonColors.MESSAGE+" was captured!");
@@ -118,12 +136,127 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 
 		save();
 	}
+	/**
+	 * Sets the Realm that owns this Warpstone, and stops any capture in progress.
+	 * <p>
+	 * Unlike {@link #setRealm(Realm)}, players are not notified and the data is not saved.
+	 * Used for bulk changes, which notify and save once for the whole batch.
+	 * @param realm the new owner, or null to make this Warpstone neutral
+	 */
+	void applyRealm(Realm realm){
+		setRealmData(realm);
+		CTWPlugin.getClusterSync().publishOwnership(this);
+	}
+	/**
+	 * Saves the data of several Warpstones, after a bulk change made with {@link #applyRealm(Realm)}.
+	 * <p>
+	 * Saving a section writes the whole file it belongs to, so the changed sections are grouped by file,
+	 * and each file is written once.
+	 * @param changed the Warpstones that were changed
+	 */
+	static void saveAll(Collection<WarpstoneCaptureData> changed){
+		Set<Object> savedFiles = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		for(WarpstoneCaptureData data : changed){
+			Object file = data.data.getRoot();
+			if(file==null || savedFiles.add(file)) data.save();
+		}
+	}
+	/**
+	 * Sets the Realm that owns this Warpstone, after it was captured on another server in the cluster.
+	 * <p>
+	 * Players are notified and the data is saved, but the change is not replicated again.
+	 * @param realm the new owner, or null to make this Warpstone neutral
+	 */
+	void setRealmFromCluster(Realm realm){
+		if(realm==this.realm || (realm!=null && realm.equals(this.realm))) return;
+
+		setRealmData(realm);
+		arena.getCaptureJournal().record(EventType.OWNERSHIP, warpstone, realm, null);
+
+		String warpstoneName = warpstone.getDisplayName()!=null ? warpstone.getDisplayName() : "Warpstone";
+		Utils.notifyAll(CommonColors.INFO+"[CTW] "+ChatColor.WHITE+warpstoneName+CommonColors.MESSAGE+" was captured!");
+		save();
+	}
+	private void setRealmData(Realm realm){
+		Realm oldRealm = this.realm;
+		this.realm = realm;
+		arena.getTerritory().onOwnerChanged(warpstone, oldRealm, realm);
+		if(realm!=null){
+			data.set("realm", realm.getIdentifier());
+			arena.setLastRealmCap(realm, warpstone);
+		} else data.set("realm", null);
+
+		// A capture by another realm was overridden, rather than completed
+		if(cappingRealm!=null && !cappingRealm.equals(realm)) cancelCapping();
+		else stopCapping();
+	}
 	@Override
 	public boolean isRealmOfficer() {
 		return false;
 	}
 
 
+	/**
+	 * Gets the Realm attempting to capture this Warpstone.
+	 * @return the capturing realm, or null if this Warpstone is not under capture
+	 */
+	public Realm getCappingRealm(){
+		return cappingRealm;
+	}
+
+	/**
+	 * Sets the Realm capturing this Warpstone on another server in the cluster.
+	 * While set, this Warpstone can't be captured here.
+	 * @param realm the capturing realm, or null if the capture there stopped or that server disconnected
+	 */
+	void setRemoteCappingRealm(Realm realm){
+		remoteCappingRealm = realm;
+	}
+
+
+	/**
+	 * Gets the arena this Warpstone is in.
+	 * @return the arena
+	 */
+	public Arena getArena(){
+		return arena;
+	}
+
+	/**
+	 * Gets the identifier of this Warpstone.
+	 * @return the Warpstone identifier
+	 */
+	String getWarpstoneIdentifier(){
+		return warpstone.getIdentifier();
+	}
+
+	/**
+	 * Gets the remaining time to capture this Warpstone.
+	 * @return the remaining cap time, in ticks, or 0 if this Warpstone is not under capture
+	 */
+	double getCapTime(){
+		return capTime;
+	}
+
+	/**
+	 * Gets the time left for capping players to reconnect, after a capture was resumed.
+	 * @return the remaining reconnect grace time, in ticks, or 0 if the capture is not waiting for players
+	 */
+	int getGraceTime(){
+		return Math.max(0, graceTime);
+	}
+
+	/**
+	 * Gets the players capturing this Warpstone, including any who have not reconnected after a restart.
+	 * @return the UUIDs of the capping players
+	 */
+	Set<UUID> getCappingPlayerIds(){
+		Set<UUID> playerIds = new HashSet<UUID>(reconnectingPlayers);
+		if(cappingPlayers!=null) cappingPlayers.forEach(player -> playerIds.add(player.getUniqueId()));
+		return playerIds;
+	}
+
+
 	/**
 	 * Called when this Warpstone is activated, if part of the CTW game (is capturable).
 	 * @param event the activation event
@@ -150,9 +283,10 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 
 			// If the warpstone is being capped by their own team, reduce required cap time
 			if(playerRealm.equals(cappingRealm) && !cappingPlayers.contains(event.getPlayer())){
-				if(cappingPlayers.size()<4) capTime=capTime*(1.00-CTWPlugin.getCapTimeReduction());
+				if(cappingPlayers.size()<4) capTime=capTime*(1.00-arena.getCapTimeReduction());
 				cappingPlayers.add(event.getPlayer());
 				progressBar.addPlayer(event.getPlayer());
+				arena.getCaptureJournal().record(EventType.CAPPER_JOIN, warpstone, cappingRealm, event.getPlayer().getUniqueId());
 				return;
 			}
 
@@ -163,19 +297,53 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 			}
 		}
 
+		// If warpstone is being capped on another server, show error
+		if(remoteCappingRealm!=null){
+			Utils.sendActionBar(event.getPlayer(), "This warpstone is already being captured on another server!");
+			return;
+		}
+
+		// If too many captures are in progress, queue or reject
+		CaptureAdmission admission = CTWPlugin.getCaptureAdmission();
+		if(!admission.tryAcquire(playerRealm)){
+			admission.onLimitReached(this, event.getPlayer(), playerRealm);
+			return;
+		}
+
 		// Otherwise, start capping!
 		startCapping(playerRealm, event.getPlayer());
 	}
 
+	/**
+	 * Checks whether a queued capture can still start: the player is still nearby, and nobody else has started capturing.
+	 * @param player the player who queued the capture
+	 * @param realm the realm who would capture
+	 * @return true if the capture can start
+	 */
+	boolean canStartQueuedCapture(Player player, Realm realm){
+		if(!isCapturable || cappingRealm!=null || remoteCappingRealm!=null || realm.equals(this.realm)) return false;
+		if(!player.isOnline() || player.isDead() || player.getWorld()!=warpstone.getLocation().getWorld()) return false;
+		return player.getLocation().distanceSquared(warpstone.getLocation()) <= Math.pow(arena.getMaxCapDistance(),2);
+	}
+	/**
+	 * Starts a queued capture, once it has been given a capture slot.
+	 * @param player the player who queued the capture
+	 * @param realm the realm who is capping
+	 */
+	void startQueuedCapture(Player player, Realm realm){
+		startCapping(realm, player);
+	}
+
 
 	/**
-	 * Starts capping process.
+	 * Starts capping process. A capture slot must already have been taken for the realm.
 	 * @param realm the realm who is capping
 	 * @param player the player who is capping
 	 */
 	private void startCapping(Realm realm, Player player){
 		// Check that capping realm is not already the owner
 		if(realm==null || realm.equals(this.realm)){
+			if(realm!=null) CTWPlugin.getCaptureAdmission().release(realm);
 			stopCapping();
 			return;
 		}
@@ -184,7 +352,12 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 		cappingRealm = realm;
 		cappingPlayers = new HashSet<Player>();
 		cappingPlayers.add(player);
-		capTime = CTWPlugin.getBaseCapTime()*20;
+		reconnectingPlayers.clear();
+		capTime = arena.getBaseCapTime()*20;
+		graceTime = 0;
+		arena.getCaptureJournal().record(EventType.CAP_START, warpstone, realm, player.getUniqueId());
+		CTWPlugin.getPlayerStats().add(player, Stat.CAPS_STARTED, 1);
+		CTWPlugin.getClusterSync().publishCapture(this, realm);
 
 		String warpstoneName = warpstone.getDisplayName()!=null ? warpstone.getDisplayName() : "Warpstone";
 
@@ -194,26 +367,84 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 		// Notify capping player, and set up progress bar
 		player.sendTitle("", ChatColor.BLUE+"Capturing "+warpstoneName);
 
+		startTimer(realm);
+	}
+
+	/**
+	 * Resumes a capture that was in progress before a restart.
+	 * <p>
+	 * The capture is held until one of the cappers reconnects. If none reconnect within the grace time,
+	 * the capture fails as if they had left.
+	 * @param realm the realm who was capping
+	 * @param capTime the remaining time to cap, in ticks
+	 * @param players the players who were capping
+	 * @param graceTime the time for players to reconnect, in ticks
+	 * @return true if the capture was resumed
+	 */
+	boolean restoreCapping(Realm realm, double capTime, Collection<UUID> players, int graceTime){
+		if(realm==null || realm.equals(this.realm) || cappingRealm!=null) return false;
+
+		cappingRealm = realm;
+		cappingPlayers = new HashSet<Player>();
+		reconnectingPlayers = new HashSet<UUID>(players);
+		this.capTime = capTime;
+		this.graceTime = graceTime;
+		CTWPlugin.getCaptureAdmission().acquire(realm);
+		CTWPlugin.getClusterSync().publishCapture(this, realm);
+
+		startTimer(realm);
+		return true;
+	}
+
+	/**
+	 * Sets up the progress bars and starts the cap timer.
+	 * @param realm the realm who is capping
+	 */
+	private void startTimer(Realm realm){
+		String warpstoneName = warpstone.getDisplayName()!=null ? warpstone.getDisplayName() : "Warpstone";
+
 		progressBar = Bukkit.createBossBar("Capturing "+warpstoneName, BarColor.BLUE, BarStyle.SOLID);
 		losingBar = Bukkit.createBossBar("Losing "+warpstoneName, BarColor.RED, BarStyle.SOLID);
 		
 		// Start timer
 		taskID = Bukkit.getScheduler().scheduleSyncRepeatingTask(getPlugin(), () -> {
+			// Add back cappers who reconnected after a restart
+			if(!reconnectingPlayers.isEmpty()){
+				for(Iterator<UUID> iterator = reconnectingPlayers.iterator(); iterator.hasNext();){
+					Player reconnected = Bukkit.getPlayer(iterator.next());
+					if(reconnected!=null && reconnected.isOnline()){
+						cappingPlayers.add(reconnected);
+						iterator.remove();
+					}
+				}
+				// Everyone is back, so the grace time is over
+				if(reconnectingPlayers.isEmpty()) graceTime = 0;
+			}
+			// Hold the capture until a capper reconnects, or the grace time runs out
+			if(graceTime>0){
+				graceTime-=20;
+				if(graceTime<=0) reconnectingPlayers.clear();
+				if(cappingPlayers.isEmpty() && graceTime>0) return;
+			}
+
 			// Update timer
 			capTime-=20;
+			for(Player cappingPlayer : cappingPlayers) CTWPlugin.getPlayerStats().add(cappingPlayer, Stat.CAP_TIME, 1);
 			// If cap time runs out, set new owner!
 			if(capTime<1){
+				for(Player cappingPlayer : cappingPlayers) CTWPlugin.getPlayerStats().add(cappingPlayer, Stat.CAPS_COMPLETED, 1);
+				arena.getCaptureJournal().record(EventType.OWNERSHIP, warpstone, cappingRealm, null);
 				setRealm(cappingRealm);
 				return;
 			}
 			
-			progressBar.setProgress(capTime/(CTWPlugin.getBaseCapTime()*20));
+			progressBar.setProgress(capTime/(arena.getBaseCapTime()*20));
 			progressBar.setTitle("Capturing "+warpstoneName+": "+getCapTimeString()+" remaining");
 			realm.getOnlinePlayers().forEach(cappingPlayer -> progressBar.addPlayer(cappingPlayer));
 			realm.getChildRealms().forEach(childRealm -> childRealm.getOnlinePlayers().forEach(childPlayer -> progressBar.addPlayer(childPlayer)));
 			progressBar.setVisible(true);
 			
-			losingBar.setProgress(capTime/(CTWPlugin.getBaseCapTime()*20));
+			losingBar.setProgress(capTime/(arena.getBaseCapTime()*20));
 			losingBar.setTitle("Losing "+warpstoneName+": "+getCapTimeString()+" remaining");
 			if(this.realm!=null){
 				this.realm.getOnlinePlayers().forEach(losingPlayer -> losingBar.addPlayer(losingPlayer));
@@ -240,31 +471,73 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 			Set<Player> checkPlayers = new HashSet<Player>(cappingPlayers);
 			Set<Player> markedRemoval = new HashSet<Player>();
 			for(Player cappingPlayer : checkPlayers){
-				if(!cappingPlayer.isOnline() || cappingPlayer.isDead() || (CTWPlugin.getCTWWorld()!=null && !cappingPlayer.getLocation().getWorld().equals(CTWPlugin.getCTWWorld())) || cappingPlayer.getLocation().distanceSquared(warpstone.getLocation()) > Math.pow(CTWPlugin.getMaxCapDistance(),2)){
+				if(!cappingPlayer.isOnline() || cappingPlayer.isDead() || cappingPlayer.getWorld()!=warpstone.getLocation().getWorld() || cappingPlayer.getLocation().distanceSquared(warpstone.getLocation()) > Math.pow(arena.getMaxCapDistance(),2)){
 					Utils.sendActionBar(cappingPlayer, CommonColors.ERROR+"You are too far away to capture "+warpstoneName);
 					markedRemoval.add(cappingPlayer);
 
 					// Increase cap time
-					capTime += (CTWPlugin.getBaseCapTime()*20) * 0.20;
+					double penalty = (arena.getBaseCapTime()*20) * 0.20;
+					capTime += penalty;
+
+					arena.getCaptureJournal().record(EventType.CAPPER_LEAVE, warpstone, realm, cappingPlayer.getUniqueId());
+					arena.getCaptureJournal().record(EventType.PENALTY, warpstone, realm, cappingPlayer.getUniqueId(), (long)penalty);
+					CTWPlugin.getPlayerStats().add(cappingPlayer, Stat.PENALTIES, 1);
 				}
 			}
 			checkPlayers.removeAll(markedRemoval);
-			if(checkPlayers.size()==0){
+			if(checkPlayers.size()==0 && reconnectingPlayers.isEmpty()){
 				cappingPlayers.forEach(cappingPlayer -> cappingPlayer.sendTitle("", CommonColors.ERROR+"Failed to capture "+warpstoneName));
 				Utils.notifyAll(CommonColors.INFO+"[CTW] "+ChatColor.WHITE+warpstoneName+CommonColors.MESSAGE+" is no longer being captured.");
-				stopCapping();
+				cancelCapping();
 			}
 			cappingPlayers.removeAll(markedRemoval);
 		}, 0, 20);
 	}
 
+	/**
+	 * Records an event about this Warpstone in the capture journal.
+	 * @param type the type of event
+	 * @param realm the realm involved, or null for none
+	 * @param player the player involved, or null for none
+	 */
+	void recordEvent(EventType type, Realm realm, UUID player){
+		arena.getCaptureJournal().record(type, warpstone, realm, player);
+	}
+
+	/**
+	 * Stops capping, recording the cancelled capture in the capture journal.
+	 */
+	void cancelCapping(){
+		cancelCapping(true);
+	}
+	/**
+	 * Stops capping, recording the cancelled capture in the capture journal.
+	 * @param publish whether to tell the rest of the cluster the capture ended; false when it lost to a capture on another server
+	 */
+	void cancelCapping(boolean publish){
+		if(cappingRealm!=null) arena.getCaptureJournal().record(EventType.CAP_CANCEL, warpstone, cappingRealm, null);
+		stopCapping(publish);
+	}
+
 	/**
 	 * Stops capping.
 	 */
 	void stopCapping(){
+		stopCapping(true);
+	}
+	private void stopCapping(boolean publish){
+		// Never capped, nothing to stop
+		if(cappingPlayers==null) return;
+
+		if(cappingRealm!=null){
+			CTWPlugin.getCaptureAdmission().release(cappingRealm);
+			if(publish) CTWPlugin.getClusterSync().publishCapture(this, null);
+		}
 		cappingRealm = null;
 		cappingPlayers.clear();
+		reconnectingPlayers.clear();
 		capTime = 0;
+		graceTime = 0;
 		progressBar.setVisible(false);
 		progressBar.removeAll();
 		losingBar.setVisible(false);
@@ -306,8 +579,10 @@ public class WarpstoneCaptureData extends WarpstoneSaveDataSection implements Re
 			String playerList = "- Capping players: ";
 			for(Player player : cappingPlayers) playerList+=player.getName();
 			prompt.addQuestion(playerList);
+			if(!reconnectingPlayers.isEmpty()) prompt.addQuestion("- Waiting for "+reconnectingPlayers.size()+" players to reconnect");
 			prompt.addAnswer("Cancel capture", "command_ctw stopcap "+warpstone.getIdentifier());
 		}
+		if(remoteCappingRealm!=null) prompt.addQuestion("- Under capture by "+remoteCappingRealm.getColor()+remoteCappingRealm.getIdentifier()+" on another server");
         return prompt;
     }
 
@@ -0,0 +1,164 @@
+package com.kylenanakdewa.ctw;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.kylenanakdewa.core.realms.Realm;
+import com.kylenanakdewa.warpstones.Warpstone;
+import com.kylenanakdewa.warpstones.WarpstonesPlugin;
+
+import org.bukkit.Location;
+
+/**
+ * Selects groups of Warpstones, for bulk admin commands.
+ * <p>
+ * Supports the following selectors:
+ * <ul>
+ * <li><code>all</code> - every Warpstone in every arena
+ * <li><code>arena:&lt;name&gt;</code> - every Warpstone in an arena
+ * <li><code>tree:&lt;name&gt;</code> - the Warpstones of a Guardian Tree
+ * <li><code>realm:&lt;realm&gt;</code> - the Warpstones owned by a Realm, or <code>realm:none</code> for neutral Warpstones
+ * <li><code>box:&lt;x1&gt;,&lt;z1&gt;,&lt;x2&gt;,&lt;z2&gt;[,&lt;world&gt;]</code> - the Warpstones within an area, in any arena or in a specific world
+ * <li><code>id:&lt;pattern&gt;</code> - the Warpstones whose identifier matches a pattern, using * and ? wildcards
+ * </ul>
+ * Warpstones that are not in an arena, and Warpstones that can't be captured (such as spawns), are never selected.
+ * @author Kyle Nanakdewa
+ */
+final class WarpstoneSelector {
+
+	private WarpstoneSelector(){}
+
+	/**
+	 * Gets the capture data for all capturable Warpstones matching a selector.
+	 * @param selector the selector string
+	 * @return the matching Warpstones' capture data, or null if the selector is invalid
+	 */
+	static Set<WarpstoneCaptureData> select(String selector){
+		return select(selector, false);
+	}
+	/**
+	 * Gets the capture data for all Warpstones matching a selector.
+	 * Spawns are never selected.
+	 * @param selector the selector string
+	 * @param includeDisabled whether to also select Warpstones that had capturing disabled
+	 * @return the matching Warpstones' capture data, or null if the selector is invalid
+	 */
+	static Set<WarpstoneCaptureData> select(String selector, boolean includeDisabled){
+		Set<WarpstoneCaptureData> selected = selectAny(selector);
+		if(selected!=null) selected.removeIf(data -> data.isSpawn() || (!includeDisabled && !data.isCapturable()));
+		return selected;
+	}
+
+	private static Set<WarpstoneCaptureData> selectAny(String selector){
+		String[] parts = selector.split(":", 2);
+		String type = parts[0].toLowerCase();
+		String value = parts.length>1 ? parts[1] : null;
+
+		if(type.equals("all")) return selectAll();
+		if(value==null || value.isEmpty()) return null;
+
+		switch(type){
+			case "arena": return selectArena(value);
+			case "tree": return selectTree(value);
+			case "realm": return selectRealm(value);
+			case "box": return selectBox(value);
+			case "id": return selectIdentifier(value);
+			default: return null;
+		}
+	}
+
+	private static Set<WarpstoneCaptureData> selectAll(){
+		Set<WarpstoneCaptureData> selected = new LinkedHashSet<WarpstoneCaptureData>();
+		for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
+			addIfInArena(selected, warpstone);
+		}
+		return selected;
+	}
+
+	private static Set<WarpstoneCaptureData> selectArena(String arenaName){
+		Arena arena = CTWPlugin.getArena(arenaName);
+		if(arena==null) return null;
+
+		Set<WarpstoneCaptureData> selected = new LinkedHashSet<WarpstoneCaptureData>();
+		for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
+			if(warpstone.getLocation()!=null && arena.contains(warpstone.getLocation().getWorld())) selected.add(arena.getWarpstoneCaptureData(warpstone));
+		}
+		return selected;
+	}
+
+	private static Set<WarpstoneCaptureData> selectTree(String treeName){
+		GuardianTree tree = CTWPlugin.getTree(treeName);
+		if(tree==null) return null;
+
+		Set<WarpstoneCaptureData> selected = new LinkedHashSet<WarpstoneCaptureData>();
+		for(Warpstone warpstone : tree.getWarpstones()){
+			if(warpstone!=null) selected.add(tree.getArena().getWarpstoneCaptureData(warpstone));
+		}
+		return selected;
+	}
+
+	private static Set<WarpstoneCaptureData> selectRealm(String realmName){
+		Realm realm = null;
+		if(!realmName.equalsIgnoreCase("none")){
+			realm = CTWPlugin.getRealmProvider().getRealm(realmName);
+			if(realm==null) return null;
+		}
+
+		Set<WarpstoneCaptureData> selected = new LinkedHashSet<WarpstoneCaptureData>();
+		for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
+			WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(warpstone);
+			if(data!=null && (realm==null ? data.getRealm()==null : realm.equals(data.getRealm()))) selected.add(data);
+		}
+		return selected;
+	}
+
+	private static Set<WarpstoneCaptureData> selectBox(String bounds){
+		String[] coords = bounds.split(",");
+		if(coords.length!=4 && coords.length!=5) return null;
+		String worldName = coords.length==5 ? coords[4].trim() : null;
+		int x1, z1, x2, z2;
+		try {
+			x1 = Integer.parseInt(coords[0].trim());
+			z1 = Integer.parseInt(coords[1].trim());
+			x2 = Integer.parseInt(coords[2].trim());
+			z2 = Integer.parseInt(coords[3].trim());
+		} catch(NumberFormatException e){
+			return null;
+		}
+		int minX = Math.min(x1, x2), maxX = Math.max(x1, x2);
+		int minZ = Math.min(z1, z2), maxZ = Math.max(z1, z2);
+
+		Set<WarpstoneCaptureData> selected = new LinkedHashSet<WarpstoneCaptureData>();
+		for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
+			Location location = warpstone.getLocation();
+			if(location==null || (worldName!=null && !location.getWorld().getName().equalsIgnoreCase(worldName))) continue;
+			if(location.getBlockX()>=minX && location.getBlockX()<=maxX && location.getBlockZ()>=minZ && location.getBlockZ()<=maxZ){
+				addIfInArena(selected, warpstone);
+			}
+		}
+		return selected;
+	}
+
+	private static Set<WarpstoneCaptureData> selectIdentifier(String pattern){
+		// Convert wildcards to a regex, quoting everything else
+		StringBuilder regex = new StringBuilder();
+		for(String literal : pattern.split("((?<=[*?])|(?=[*?]))")){
+			if(literal.equals("*")) regex.append(".*");
+			else if(literal.equals("?")) regex.append('.');
+			else if(!literal.isEmpty()) regex.append(Pattern.quote(literal));
+		}
+		Pattern compiled = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+
+		Set<WarpstoneCaptureData> selected = new LinkedHashSet<WarpstoneCaptureData>();
+		for(Warpstone warpstone : WarpstonesPlugin.getWarpstones().values()){
+			if(compiled.matcher(warpstone.getIdentifier()).matches()) addIfInArena(selected, warpstone);
+		}
+		return selected;
+	}
+
+	private static void addIfInArena(Set<WarpstoneCaptureData> selected, Warpstone warpstone){
+		WarpstoneCaptureData data = CTWPlugin.getWarpstoneCaptureData(warpstone);
+		if(data!=null) selected.add(data);
+	}
+}
@@ -0,0 +1,75 @@
+package com.kylenanakdewa.ctw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ActivationLimiter}.
+ * @author Kyle Nanakdewa
+ */
+public class ActivationLimiterTest {
+
+	@Test
+	public void allowsBurstThenDrops(){
+		// One token a minute, so none refill during the test
+		ActivationLimiter limiter = new ActivationLimiter(1.0/60, 3);
+		Player player = Mocks.player(UUID.randomUUID());
+
+		assertTrue(limiter.tryAcquire(player));
+		assertTrue(limiter.tryAcquire(player));
+		assertTrue(limiter.tryAcquire(player));
+		assertFalse(limiter.tryAcquire(player));
+		assertFalse(limiter.tryAcquire(player));
+		assertEquals(2, limiter.getDroppedCount());
+	}
+
+	@Test
+	public void limitsEachPlayerSeparately(){
+		ActivationLimiter limiter = new ActivationLimiter(1.0/60, 1);
+		Player first = Mocks.player(UUID.randomUUID());
+		Player second = Mocks.player(UUID.randomUUID());
+
+		assertTrue(limiter.tryAcquire(first));
+		assertFalse(limiter.tryAcquire(first));
+		assertTrue(limiter.tryAcquire(second));
+	}
+
+	@Test
+	public void forgettingResetsBucket(){
+		ActivationLimiter limiter = new ActivationLimiter(1.0/60, 1);
+		Player player = Mocks.player(UUID.randomUUID());
+
+		assertTrue(limiter.tryAcquire(player));
+		assertFalse(limiter.tryAcquire(player));
+		limiter.forget(player);
+		assertTrue(limiter.tryAcquire(player));
+	}
+
+	@Test
+	public void refillsAtRate(){
+		// A token every millisecond
+		ActivationLimiter limiter = new ActivationLimiter(1000, 1);
+		Player player = Mocks.player(UUID.randomUUID());
+
+		assertTrue(limiter.tryAcquire(player));
+		long waitUntil = System.nanoTime()+5_000_000L;
+		while(System.nanoTime()<waitUntil) Thread.yield();
+		assertTrue(limiter.tryAcquire(player));
+	}
+
+	@Test
+	public void zeroRateDisablesLimiting(){
+		ActivationLimiter limiter = new ActivationLimiter(0, 1);
+		Player player = Mocks.player(UUID.randomUUID());
+
+		assertFalse(limiter.isEnabled());
+		for(int i=0; i<100; i++) assertTrue(limiter.tryAcquire(player));
+		assertEquals(0, limiter.getDroppedCount());
+	}
+}
@@ -0,0 +1,93 @@
+package com.kylenanakdewa.ctw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import com.kylenanakdewa.core.realms.Realm;
+
+import org.bukkit.entity.Player;
+import org.junit.Test;
+
+/**
+ * Tests for the limits and queue order of {@link CaptureAdmission}.
+ * @author Kyle Nanakdewa
+ */
+public class CaptureAdmissionTest {
+
+	private final Realm red = Mocks.realm("red");
+	private final Realm blue = Mocks.realm("blue");
+	private final Realm green = Mocks.realm("green");
+
+	@Test
+	public void enforcesRealmAndServerLimits(){
+		CaptureAdmission admission = new CaptureAdmission(2, 1, true);
+
+		assertTrue(admission.tryAcquire(red));
+		assertFalse(admission.tryAcquire(red));
+		assertTrue(admission.tryAcquire(blue));
+		assertFalse(admission.tryAcquire(green));
+
+		admission.release(red);
+		assertTrue(admission.tryAcquire(green));
+		assertFalse(admission.tryAcquire(red));
+	}
+
+	@Test
+	public void noLimitsAdmitsEverything(){
+		CaptureAdmission admission = new CaptureAdmission(0, 0, true);
+		for(int i=0; i<100; i++) assertTrue(admission.tryAcquire(red));
+	}
+
+	@Test
+	public void queuesInOrder(){
+		CaptureAdmission admission = new CaptureAdmission(1, 0, true);
+		Player first = Mocks.player(UUID.randomUUID());
+		Player second = Mocks.player(UUID.randomUUID());
+		Player third = Mocks.player(UUID.randomUUID());
+
+		assertEquals(1, admission.enqueue(null, first, red));
+		assertEquals(2, admission.enqueue(null, second, blue));
+		assertEquals(3, admission.enqueue(null, third, red));
+	}
+
+	@Test
+	public void queueingAgainKeepsPlace(){
+		CaptureAdmission admission = new CaptureAdmission(1, 0, true);
+		Player first = Mocks.player(UUID.randomUUID());
+		Player second = Mocks.player(UUID.randomUUID());
+
+		admission.enqueue(null, first, red);
+		admission.enqueue(null, second, blue);
+		assertEquals(1, admission.enqueue(null, first, red));
+		assertEquals(2, admission.enqueue(null, second, blue));
+	}
+
+	@Test
+	public void queueingForSomethingElseGoesToBack(){
+		CaptureAdmission admission = new CaptureAdmission(1, 0, true);
+		Player first = Mocks.player(UUID.randomUUID());
+		Player second = Mocks.player(UUID.randomUUID());
+		Player third = Mocks.player(UUID.randomUUID());
+
+		admission.enqueue(null, first, red);
+		admission.enqueue(null, second, blue);
+		admission.enqueue(null, third, blue);
+		assertEquals(3, admission.enqueue(null, first, green));
+		assertEquals(1, admission.enqueue(null, second, blue));
+	}
+
+	@Test
+	public void forgettingLeavesLine(){
+		CaptureAdmission admission = new CaptureAdmission(1, 0, true);
+		Player first = Mocks.player(UUID.randomUUID());
+		Player second = Mocks.player(UUID.randomUUID());
+
+		admission.enqueue(null, first, red);
+		admission.enqueue(null, second, blue);
+		admission.forget(first);
+		assertEquals(1, admission.enqueue(null, second, blue));
+	}
+}
@@ -0,0 +1,97 @@
+package com.kylenanakdewa.ctw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.UUID;
+
+import com.kylenanakdewa.ctw.CaptureJournal.EventType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for recording to and replaying the {@link CaptureJournal}.
+ * @author Kyle Nanakdewa
+ */
+public class CaptureJournalTest {
+
+	private File folder;
+	private CaptureJournal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("ctw-journal").toFile();
+		journal = new CaptureJournal(folder);
+		journal.open();
+	}
+
+	@After
+	public void tearDown(){
+		journal.close();
+		TestFiles.delete(folder);
+	}
+
+	/** Waits for the clock to move on, so events recorded after this have a later timestamp. */
+	private static long nextMillisecond() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		while(System.currentTimeMillis()<=now) Thread.sleep(1);
+		return now;
+	}
+
+	@Test
+	public void replaysOwnershipAndOverrides() throws IOException {
+		UUID player = UUID.randomUUID();
+		journal.record(EventType.CAP_START, "north", Mocks.realm("red"), player, 0);
+		journal.record(EventType.OWNERSHIP, "north", Mocks.realm("red"), player, 0);
+		journal.record(EventType.OWNERSHIP, "south", Mocks.realm("blue"), null, 0);
+		journal.record(EventType.ADMIN_OVERRIDE, "south", null, null, 0);
+		journal.record(EventType.CAP_START, "east", Mocks.realm("blue"), player, 0);
+
+		Map<String,String> owners = journal.snapshot().getOwnership(Long.MAX_VALUE);
+		assertEquals(2, owners.size());
+		assertEquals("red", owners.get("north"));
+		assertTrue(owners.containsKey("south"));
+		assertNull(owners.get("south"));
+	}
+
+	@Test
+	public void replaysUpToTime() throws IOException, InterruptedException {
+		journal.record(EventType.OWNERSHIP, "north", Mocks.realm("red"), null, 0);
+		long between = nextMillisecond();
+		nextMillisecond();
+		journal.record(EventType.OWNERSHIP, "north", Mocks.realm("blue"), null, 0);
+
+		assertEquals("red", journal.snapshot().getOwnership(between).get("north"));
+		assertEquals("blue", journal.snapshot().getOwnership(Long.MAX_VALUE).get("north"));
+	}
+
+	@Test
+	public void snapshotIgnoresLaterEvents() throws IOException {
+		journal.record(EventType.OWNERSHIP, "north", Mocks.realm("red"), null, 0);
+		CaptureJournal.Replay replay = journal.snapshot();
+		journal.record(EventType.OWNERSHIP, "north", Mocks.realm("blue"), null, 0);
+
+		assertEquals("red", replay.getOwnership(Long.MAX_VALUE).get("north"));
+	}
+
+	@Test
+	public void continuesAfterReopening() throws IOException {
+		journal.record(EventType.OWNERSHIP, "north", Mocks.realm("red"), null, 0);
+		journal.close();
+
+		journal = new CaptureJournal(folder);
+		journal.open();
+		journal.record(EventType.OWNERSHIP, "south", Mocks.realm("blue"), null, 0);
+
+		Map<String,String> owners = journal.snapshot().getOwnership(Long.MAX_VALUE);
+		assertEquals("red", owners.get("north"));
+		assertEquals("blue", owners.get("south"));
+	}
+}
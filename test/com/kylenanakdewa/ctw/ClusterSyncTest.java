@@ -0,0 +1,90 @@
+package com.kylenanakdewa.ctw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.kylenanakdewa.ctw.ClusterDelta.Kind;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for merging replicated values and numbering changes in {@link ClusterSync}.
+ * @author Kyle Nanakdewa
+ */
+public class ClusterSyncTest {
+
+	private File folder;
+	private ClusterSync sync;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("ctw-cluster").toFile();
+		sync = new ClusterSync(null, "local", null, new File(folder, "cluster-counter.dat"));
+	}
+
+	@After
+	public void tearDown(){
+		TestFiles.delete(folder);
+	}
+
+	private static ClusterDelta delta(String realm, long timestamp, String node, VersionVector version){
+		return new ClusterDelta(Kind.OWNERSHIP, "main", "stone", realm, timestamp, node, version);
+	}
+
+	@Test
+	public void laterChangeReplacesEarlier(){
+		VersionVector first = VersionVector.EMPTY.withChange("a", 1);
+		assertTrue(sync.merge(delta("red", 100, "a", first)));
+		assertTrue(sync.merge(delta("blue", 50, "b", first.withChange("b", 1))));
+		// Older and repeated changes are ignored
+		assertFalse(sync.merge(delta("red", 100, "a", first)));
+		assertFalse(sync.merge(delta("blue", 50, "b", first.withChange("b", 1))));
+	}
+
+	@Test
+	public void concurrentChangeResolvedByLastWriter(){
+		VersionVector base = VersionVector.EMPTY.withChange("a", 1);
+		sync.merge(delta("red", 100, "a", base));
+
+		VersionVector onA = base.withChange("a", 2);
+		VersionVector onB = base.withChange("b", 1);
+		assertTrue(sync.merge(delta("red", 200, "a", onA)));
+		// Concurrent with the current value, but older, so it loses
+		assertFalse(sync.merge(delta("blue", 150, "b", onB)));
+		// The merged version is kept, so a change that saw both replaces it
+		assertTrue(sync.merge(delta("green", 10, "c", onA.merge(onB).withChange("c", 1))));
+	}
+
+	@Test
+	public void concurrentTieBrokenByNode(){
+		VersionVector base = VersionVector.EMPTY.withChange("a", 1);
+		sync.merge(delta("red", 100, "a", base));
+
+		assertTrue(sync.merge(delta("blue", 200, "b", base.withChange("b", 1))));
+		assertTrue(sync.merge(delta("green", 200, "c", base.withChange("c", 1))));
+		assertFalse(sync.merge(delta("red", 200, "a", base.withChange("a", 2))));
+	}
+
+	@Test
+	public void counterNeverFallsBehindOwnChanges(){
+		sync.merge(delta("red", 100, "local", VersionVector.EMPTY.withChange("local", 50)));
+		assertEquals(51, sync.nextCounter());
+		assertEquals(52, sync.nextCounter());
+	}
+
+	@Test
+	public void counterContinuesAfterRestart(){
+		long before = sync.nextCounter();
+
+		ClusterSync restarted = new ClusterSync(null, "local", null, new File(folder, "cluster-counter.dat"));
+		restarted.loadCounter();
+		assertTrue(restarted.nextCounter()>before);
+	}
+}
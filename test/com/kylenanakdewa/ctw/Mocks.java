@@ -0,0 +1,51 @@
+package com.kylenanakdewa.ctw;
+
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+
+import com.kylenanakdewa.core.realms.Realm;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Minimal stand-ins for Bukkit and CoRE interfaces, for tests that don't run a server.
+ * Only identity, equality and the one identifying method are implemented.
+ * @author Kyle Nanakdewa
+ */
+final class Mocks {
+
+	private Mocks(){}
+
+	/**
+	 * Creates a player with a UUID.
+	 * @param id the player's UUID
+	 * @return a player that only supports getUniqueId
+	 */
+	static Player player(UUID id){
+		return create(Player.class, "getUniqueId", id);
+	}
+
+	/**
+	 * Creates a realm with an identifier.
+	 * @param identifier the realm's identifier
+	 * @return a realm that only supports getIdentifier and getName
+	 */
+	static Realm realm(String identifier){
+		return create(Realm.class, "getIdentifier", identifier);
+	}
+
+	private static <T> T create(Class<T> type, String idMethod, Object id){
+		Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+			switch(method.getName()){
+				case "equals": return self==args[0];
+				case "hashCode": return System.identityHashCode(self);
+				case "toString": return type.getSimpleName()+"("+id+")";
+				case "getName": return id.toString();
+				default:
+					if(method.getName().equals(idMethod)) return id;
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		return type.cast(proxy);
+	}
+}
@@ -0,0 +1,158 @@
+package com.kylenanakdewa.ctw;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import com.kylenanakdewa.ctw.PlayerStats.Stat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the records, index and leaders of {@link PlayerStats}.
+ * Batches are written directly, as the writer thread would.
+ * @author Kyle Nanakdewa
+ */
+public class PlayerStatsTest {
+
+	private static final int STATS = Stat.values().length;
+
+	private File folder;
+	private File file;
+	/** The expected stats of each player. */
+	private final Map<UUID,long[]> expected = new HashMap<UUID,long[]>();
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("ctw-stats").toFile();
+		file = new File(folder, "stats.dat");
+	}
+
+	@After
+	public void tearDown(){
+		TestFiles.delete(folder);
+	}
+
+	private PlayerStats open(){
+		PlayerStats stats = new PlayerStats(file);
+		stats.open();
+		return stats;
+	}
+
+	/**
+	 * Writes random batches of changes for a number of players.
+	 */
+	private void writeBatches(PlayerStats stats, int players, int batches, long seed){
+		Random random = new Random(seed);
+		List<UUID> ids = new ArrayList<UUID>();
+		for(int i=0; i<players; i++) ids.add(new UUID(random.nextLong(), random.nextLong()));
+
+		for(int batch=0; batch<batches; batch++){
+			Map<UUID,long[]> changes = new HashMap<UUID,long[]>();
+			for(int i=0; i<players/4; i++){
+				UUID player = ids.get(random.nextInt(ids.size()));
+				int stat = random.nextInt(STATS);
+				long amount = 1+random.nextInt(100);
+				changes.computeIfAbsent(player, key -> new long[STATS])[stat] += amount;
+				expected.computeIfAbsent(player, key -> new long[STATS])[stat] += amount;
+			}
+			stats.write(changes);
+		}
+	}
+
+	private void assertMatchesExpected(PlayerStats stats){
+		for(Map.Entry<UUID,long[]> player : expected.entrySet()){
+			assertArrayEquals(player.getValue(), stats.read(player.getKey()));
+		}
+		assertArrayEquals(new long[STATS], stats.read(UUID.randomUUID()));
+
+		for(Stat stat : Stat.values()){
+			List<Long> values = new ArrayList<Long>();
+			for(long[] player : expected.values()){
+				if(player[stat.ordinal()]>0) values.add(player[stat.ordinal()]);
+			}
+			values.sort(Collections.reverseOrder());
+
+			UUID[] top = stats.getTop(stat, PlayerStats.MAX_TOP);
+			assertEquals(Math.min(PlayerStats.MAX_TOP, values.size()), top.length);
+			for(int rank=0; rank<top.length; rank++){
+				assertEquals((long)values.get(rank), expected.get(top[rank])[stat.ordinal()]);
+			}
+		}
+	}
+
+	@Test
+	public void emptyStatsHaveNoLeaders(){
+		PlayerStats stats = open();
+		for(Stat stat : Stat.values()) assertEquals(0, stats.getTop(stat, PlayerStats.MAX_TOP).length);
+		assertArrayEquals(new long[STATS], stats.read(UUID.randomUUID()));
+	}
+
+	@Test
+	public void keepsRecordsAndLeadersAcrossBatches(){
+		PlayerStats stats = open();
+		writeBatches(stats, 200, 20, 1);
+		assertMatchesExpected(stats);
+	}
+
+	@Test
+	public void growsIndexPastInitialCapacity(){
+		PlayerStats stats = open();
+		writeBatches(stats, 5000, 40, 2);
+		assertTrue(expected.size()>1024);
+		assertMatchesExpected(stats);
+	}
+
+	@Test
+	public void loadsLeadersWhenReopened(){
+		writeBatches(open(), 300, 10, 3);
+		PlayerStats reopened = open();
+		assertMatchesExpected(reopened);
+
+		writeBatches(reopened, 300, 5, 4);
+		assertMatchesExpected(open());
+	}
+
+	@Test
+	public void rebuildsMissingIndexAndLeaders(){
+		writeBatches(open(), 300, 10, 5);
+		new File(file.getPath()+".idx").delete();
+		new File(file.getPath()+".top").delete();
+
+		PlayerStats rebuilt = open();
+		assertMatchesExpected(rebuilt);
+		writeBatches(rebuilt, 300, 5, 6);
+		assertMatchesExpected(open());
+	}
+
+	@Test
+	public void leadersOnlyChangeOnIncrease(){
+		PlayerStats stats = open();
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+
+		Map<UUID,long[]> batch = new HashMap<UUID,long[]>();
+		batch.put(first, new long[]{5, 0, 0, 0});
+		batch.put(second, new long[]{3, 0, 0, 0});
+		stats.write(batch);
+		assertArrayEquals(new UUID[]{first, second}, stats.getTop(Stat.CAPS_STARTED, 2));
+		assertEquals(0, stats.getTop(Stat.CAPS_COMPLETED, 2).length);
+
+		stats.write(Collections.singletonMap(second, new long[]{4, 0, 0, 0}));
+		assertArrayEquals(new UUID[]{second, first}, stats.getTop(Stat.CAPS_STARTED, 2));
+		assertArrayEquals(new UUID[]{second}, stats.getTop(Stat.CAPS_STARTED, 1));
+	}
+}
@@ -0,0 +1,24 @@
+package com.kylenanakdewa.ctw;
+
+import java.io.File;
+
+/**
+ * Helpers for tests that use temporary files.
+ * @author Kyle Nanakdewa
+ */
+final class TestFiles {
+
+	private TestFiles(){}
+
+	/**
+	 * Deletes a file, or a folder and everything in it.
+	 * @param file the file or folder to delete
+	 */
+	static void delete(File file){
+		File[] children = file.listFiles();
+		if(children!=null){
+			for(File child : children) delete(child);
+		}
+		file.delete();
+	}
+}
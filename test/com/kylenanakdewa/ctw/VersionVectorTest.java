@@ -0,0 +1,68 @@
+package com.kylenanakdewa.ctw;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.kylenanakdewa.ctw.VersionVector.Order;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link VersionVector}.
+ * @author Kyle Nanakdewa
+ */
+public class VersionVectorTest {
+
+	@Test
+	public void comparesSequentialChanges(){
+		VersionVector first = VersionVector.EMPTY.withChange("a", 1);
+		VersionVector second = first.withChange("b", 1);
+
+		assertEquals(Order.BEFORE, first.compareTo(second));
+		assertEquals(Order.AFTER, second.compareTo(first));
+		assertEquals(Order.EQUAL, second.compareTo(first.withChange("b", 1)));
+		assertEquals(Order.AFTER, first.compareTo(VersionVector.EMPTY));
+	}
+
+	@Test
+	public void detectsConcurrentChanges(){
+		VersionVector base = VersionVector.EMPTY.withChange("a", 1);
+		VersionVector onA = base.withChange("a", 2);
+		VersionVector onB = base.withChange("b", 5);
+
+		assertEquals(Order.CONCURRENT, onA.compareTo(onB));
+		assertEquals(Order.CONCURRENT, onB.compareTo(onA));
+	}
+
+	@Test
+	public void mergeTakesHighestCounters(){
+		VersionVector onA = VersionVector.EMPTY.withChange("a", 3).withChange("b", 1);
+		VersionVector onB = VersionVector.EMPTY.withChange("a", 1).withChange("b", 4);
+		VersionVector merged = onA.merge(onB);
+
+		assertEquals(3, merged.get("a"));
+		assertEquals(4, merged.get("b"));
+		assertEquals(0, merged.get("c"));
+		assertEquals(Order.AFTER, merged.compareTo(onA));
+		assertEquals(Order.AFTER, merged.compareTo(onB));
+	}
+
+	@Test
+	public void roundTripsThroughStream() throws IOException {
+		VersionVector version = VersionVector.EMPTY.withChange("a", 7).withChange("node-b", Long.MAX_VALUE);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)){
+			version.write(out);
+		}
+		VersionVector read = VersionVector.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(Order.EQUAL, read.compareTo(version));
+		assertEquals(Long.MAX_VALUE, read.get("node-b"));
+	}
+}